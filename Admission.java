@@ -0,0 +1,122 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Admission class
+ * Decides which new connections a server takes, lock free
+ * a cap on the open connections, a cap per client address and a limit on the accept rate (see RateLimiter)
+ * an admitted connection holds its slot from the accept until it's closed, logged in or not,
+ * so the caps can't be passed by clients that connect and never log in, or by logins racing each other
+ */
+public class Admission {
+    /**
+     * Admission answers
+     */
+    public enum Verdict {
+        ADMITTED, // the connection holds a slot
+        FULL, // the server has its maximum connections
+        ADDRESS_FULL, // the client's address has its maximum connections
+        TOO_FAST // connections arrive faster than the accept rate
+    }
+
+    private final int MAX_CONNECTIONS; // open connections allowed
+    private final int MAX_PER_ADDRESS; // open connections allowed from one address, 0 for no limit
+    private final RateLimiter accepts; // limits the accept rate, null for no limit
+    private final AtomicInteger open = new AtomicInteger(); // connections holding a slot
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<>(); // address -> its open connections, -1 once removed
+
+    /**
+     * Creates an admission control
+     *
+     * @param maxConnections   - open connections allowed
+     * @param maxPerAddress    - open connections allowed from one address, 0 for no limit
+     * @param acceptsPerSecond - connections accepted per second, a second's worth may come at once, 0 for no limit
+     */
+    public Admission(int maxConnections, int maxPerAddress, int acceptsPerSecond) {
+        if (maxConnections < 0 || maxPerAddress < 0 || acceptsPerSecond < 0)
+            throw new IllegalArgumentException("bad admission limits");
+        MAX_CONNECTIONS = maxConnections;
+        MAX_PER_ADDRESS = maxPerAddress;
+        accepts = acceptsPerSecond > 0 ? new RateLimiter(acceptsPerSecond, acceptsPerSecond) : null;
+    }
+
+    /**
+     * Decides on a new connection, an admitted one must be released when it's closed
+     *
+     * @param address - the client's address
+     * @return - the verdict
+     */
+    public Verdict admit(InetAddress address) {
+        if (accepts != null && !accepts.tryAcquire())
+            return Verdict.TOO_FAST;
+        int n;
+        do {
+            n = open.get();
+            if (n >= MAX_CONNECTIONS)
+                return Verdict.FULL;
+        } while (!open.compareAndSet(n, n + 1));
+        if (MAX_PER_ADDRESS > 0 && !acquire(address)) {
+            open.decrementAndGet();
+            return Verdict.ADDRESS_FULL;
+        }
+        return Verdict.ADMITTED;
+    }
+
+    /**
+     * Frees a closed connection's slot
+     *
+     * @param address - the client's address
+     */
+    public void release(InetAddress address) {
+        if (MAX_PER_ADDRESS > 0) {
+            AtomicInteger count = perAddress.get(address);
+            if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) // last one, unless one came meanwhile
+                perAddress.remove(address, count);
+        }
+        open.decrementAndGet();
+    }
+
+    /**
+     * Takes one of an address's slots
+     *
+     * @param address - the address
+     * @return - true if taken, false if the address has its maximum connections
+     */
+    private boolean acquire(InetAddress address) {
+        while (true) {
+            AtomicInteger count = perAddress.computeIfAbsent(address, new Function<InetAddress, AtomicInteger>() {
+                @Override
+                public AtomicInteger apply(InetAddress a) {
+                    return new AtomicInteger();
+                }
+            });
+            int n = count.get();
+            if (n < 0) // being removed, retrying with a new count
+                continue;
+            if (n >= MAX_PER_ADDRESS)
+                return false;
+            if (count.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Returns the connections holding a slot
+     *
+     * @return - open connections count
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    /**
+     * Returns the open connections allowed
+     *
+     * @return - the maximum
+     */
+    public int getMaxConnections() {
+        return MAX_CONNECTIONS;
+    }
+}
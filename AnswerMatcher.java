@@ -0,0 +1,286 @@
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AnswerMatcher class
+ * Checks players guesses against a question's accepted answers, forgiving what doesn't matter
+ * a guess and the answers are compared normalized: lower case, accents removed (Unicode NFKD),
+ * punctuation and runs of whitespace as a single space, apostrophes and a leading "the", "a" or "an" dropped
+ * numeric answers match any way of writing the number: "4", " 4.0", "four", "1,000", "one thousand"
+ * longer answers forgive typos: 1 edit from 4 letters, 2 from 9 (insert, delete, replace or swap)
+ * the answers are normalized once, when the matcher is built, checking a guess only normalizes the guess
+ * into a per thread scratch buffer, so players spamming guesses create almost no garbage
+ * immutable, safe to share between threads
+ */
+public class AnswerMatcher {
+    private static final int MAX_GUESS = 128; // longer guesses are never right
+    private static final int ONE_TYPO = 4; // answers of this length forgive 1 edit
+    private static final int TWO_TYPOS = 9; // answers of this length forgive 2 edits
+    private static final Map<String, Long> NUMBERS = numbers(); // number words -> values
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    private final char[][] answers; // normalized answers
+    private final double[] numbers; // numeric value of each answer, NaN if it isn't a number
+    private final boolean numeric; // true if any answer is a number
+    private final int longest; // longest normalized answer
+
+    /**
+     * Buffers of the checking thread
+     */
+    private static class Scratch {
+        private final char[] guess = new char[MAX_GUESS]; // normalized guess
+        private final int[][] rows = new int[3][MAX_GUESS + 1]; // edit distance rows
+    }
+
+    /**
+     * Compiles a question's answers
+     *
+     * @param accepted - the accepted answers
+     */
+    public AnswerMatcher(String[] accepted) {
+        answers = new char[accepted.length][];
+        numbers = new double[accepted.length];
+        boolean anyNumber = false;
+        int max = 0;
+        for (int i = 0; i < accepted.length; i++) {
+            char[] buffer = new char[Math.max(MAX_GUESS, accepted[i].length())];
+            int n = normalize(accepted[i], buffer);
+            answers[i] = Arrays.copyOf(buffer, Math.max(n, 0));
+            numbers[i] = n < 0 ? Double.NaN : number(buffer, n);
+            anyNumber |= !Double.isNaN(numbers[i]);
+            max = Math.max(max, answers[i].length);
+        }
+        numeric = anyNumber;
+        longest = max;
+    }
+
+    /**
+     * Checks a guess
+     *
+     * @param guess - a player's chat line
+     * @return - true if it is one of the answers
+     */
+    public boolean matches(String guess) {
+        if (guess == null)
+            return false;
+        Scratch s = SCRATCH.get();
+        int n = normalize(guess, s.guess);
+        if (n <= 0 || n > longest + 2 && !numeric) // nothing left or too long to be a typo, numbers may be spelled out
+            return false;
+        double value = numeric ? number(s.guess, n) : Double.NaN;
+        for (int i = 0; i < answers.length; i++) {
+            char[] a = answers[i];
+            if (!Double.isNaN(numbers[i])) { // numbers are never fuzzy
+                if (value == numbers[i])
+                    return true;
+                continue;
+            }
+            int typos = a.length >= TWO_TYPOS ? 2 : a.length >= ONE_TYPO ? 1 : 0;
+            if (Math.abs(a.length - n) <= typos && distance(a, s.guess, n, typos, s.rows) <= typos)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Normalizes a string into a buffer
+     *
+     * @param text - the string
+     * @param out  - the buffer
+     * @return - the normalized length, -1 if it doesn't fit the buffer
+     */
+    private static int normalize(String text, char[] out) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) { // accents and compatibility forms, rare in chat
+                text = Normalizer.normalize(text, Normalizer.Form.NFKD);
+                break;
+            }
+        }
+        int n = 0;
+        boolean space = true; // a space is due before the next word, none at the start
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && n > 0) {
+                    if (n == out.length)
+                        return -1;
+                    out[n++] = ' ';
+                }
+                space = false;
+                if (n == out.length)
+                    return -1;
+                out[n++] = Character.toLowerCase(c);
+            } else if (c == '\'' || c == '\u2019' || Character.getType(c) == Character.NON_SPACING_MARK) {
+                // dropped, "don't" is "dont" and an accent's mark is dropped from its letter
+            } else if ((c == '.' || c == ',') && n > 0 && Character.isDigit(out[n - 1]) && !space
+                    && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1))) {
+                if (c == '.') { // decimal point, a comma between digits is a thousands separator
+                    if (n == out.length)
+                        return -1;
+                    out[n++] = '.';
+                }
+            } else {
+                space = true;
+            }
+        }
+        return dropArticle(out, n);
+    }
+
+    /**
+     * Drops a leading "the", "a" or "an"
+     *
+     * @param s - the normalized string
+     * @param n - its length
+     * @return - the new length
+     */
+    private static int dropArticle(char[] s, int n) {
+        int word = 0;
+        while (word < n && s[word] != ' ') {
+            word++;
+        }
+        if (word == n) // a single word, kept even if it is an article
+            return n;
+        boolean article = word == 3 && s[0] == 't' && s[1] == 'h' && s[2] == 'e'
+                || word == 1 && s[0] == 'a'
+                || word == 2 && s[0] == 'a' && s[1] == 'n';
+        if (!article)
+            return n;
+        System.arraycopy(s, word + 1, s, 0, n - word - 1);
+        return n - word - 1;
+    }
+
+    /**
+     * Reads a normalized string as a number, in digits or in English words
+     *
+     * @param s - the normalized string
+     * @param n - its length
+     * @return - the value, NaN if it isn't a number
+     */
+    private static double number(char[] s, int n) {
+        if (n == 0)
+            return Double.NaN;
+        if (Character.isDigit(s[0])) {
+            long whole = 0;
+            int i = 0;
+            for (; i < n && Character.isDigit(s[i]); i++) {
+                if (whole > Long.MAX_VALUE / 10 - 9)
+                    return Double.NaN;
+                whole = whole * 10 + Character.digit(s[i], 10);
+            }
+            if (i == n)
+                return whole;
+            if (s[i] != '.' || i + 1 == n)
+                return Double.NaN;
+            double fraction = 0;
+            double scale = 1;
+            for (i++; i < n; i++) {
+                if (!Character.isDigit(s[i]))
+                    return Double.NaN;
+                scale /= 10;
+                fraction += Character.digit(s[i], 10) * scale;
+            }
+            return whole + fraction;
+        }
+        long total = 0; // completed thousands and millions
+        long current = 0; // the group being read
+        boolean any = false;
+        int start = 0;
+        while (start < n) {
+            int end = start;
+            while (end < n && s[end] != ' ') {
+                end++;
+            }
+            Long v = NUMBERS.get(new String(s, start, end - start));
+            if (v == null)
+                return Double.NaN;
+            if (v == 100) {
+                current = (current == 0 ? 1 : current) * 100;
+            } else if (v >= 1000) {
+                total += (current == 0 ? 1 : current) * v;
+                current = 0;
+            } else if (v >= 0) {
+                current += v;
+            } // negative is "and"
+            any |= v >= 0;
+            start = end + 1;
+        }
+        return any ? total + current : Double.NaN;
+    }
+
+    /**
+     * Returns the edit distance of two strings, up to a bound
+     * insertions, deletions, replacements and swaps of neighbours count 1 (optimal string alignment),
+     * only the diagonal band the bound allows is computed
+     *
+     * @param a     - first string
+     * @param b     - second string
+     * @param bn    - second string's length
+     * @param bound - the largest distance of interest
+     * @param rows  - 3 rows of at least bn + 1 cells
+     * @return - the distance, or bound + 1 if it is larger
+     */
+    private static int distance(char[] a, char[] b, int bn, int bound, int[][] rows) {
+        int over = bound + 1;
+        int[] before = rows[0]; // row i - 2
+        int[] prev = rows[1]; // row i - 1
+        int[] row = rows[2]; // row i
+        for (int j = 0; j <= bn; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= a.length; i++) {
+            int from = Math.max(1, i - bound);
+            int to = Math.min(bn, i + bound);
+            row[0] = i;
+            if (from > 1)
+                row[from - 1] = over;
+            int best = over;
+            for (int j = from; j <= to; j++) {
+                int cost = a[i - 1] == b[j - 1] ? 0 : 1;
+                int d = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a[i - 1] == b[j - 2] && a[i - 2] == b[j - 1])
+                    d = Math.min(d, before[j - 2] + 1);
+                row[j] = Math.min(d, over);
+                best = Math.min(best, row[j]);
+            }
+            if (to < bn)
+                row[to + 1] = over;
+            if (best > bound) // every path is already too long
+                return over;
+            int[] t = before;
+            before = prev;
+            prev = row;
+            row = t;
+        }
+        return prev[bn];
+    }
+
+    /**
+     * Creates the number words table
+     *
+     * @return - the words and their values, "and" is -1
+     */
+    private static Map<String, Long> numbers() {
+        String[] units = {"zero", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten",
+                "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen", "eighteen", "nineteen"};
+        String[] tens = {"twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety"};
+        Map<String, Long> words = new HashMap<>();
+        for (int i = 0; i < units.length; i++) {
+            words.put(units[i], (long) i);
+        }
+        for (int i = 0; i < tens.length; i++) {
+            words.put(tens[i], (long) (i + 2) * 10);
+        }
+        words.put("hundred", 100L);
+        words.put("thousand", 1000L);
+        words.put("million", 1000000L);
+        words.put("billion", 1000000000L);
+        words.put("and", -1L);
+        return words;
+    }
+}
@@ -0,0 +1,490 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * ChatLog class
+ * The rooms chat history, an append only log on disk that users get the last lines of when they join a room
+ * broadcasts are queued as they are sent and appended by a writer thread, everything queued meanwhile
+ * in one gathering write and one fsync (group commit), so a broadcast never waits for the disk
+ * the log is a directory of segment files, a new one is started when the current one is full,
+ * the oldest are deleted when they are over the retained size or age
+ * a record is: length, room name, the frame exactly as it was sent to the room
+ * every room keeps the positions of its last lines in a ring, the frames themselves are never kept in memory
+ * a join's catch-up is sent straight from the mapped segments, every line a slice of its segment's mapping,
+ * nothing is copied or decoded, the lines are queued to the user like any other message, so they keep its writes ordered
+ * a room appends its lines and queues its joins catch-ups under its lock (see Room.publish), and the writer serves
+ * a catch-up right after the lines queued before it, so it has exactly the lines the user didn't get live,
+ * though a line broadcast right after the join may reach the user before the catch-up
+ */
+public class ChatLog {
+    private static final String SUFFIX = ".log"; // segment files suffix
+    private static final int BATCH = 1024; // most queued entries handled in one write
+    private static final Entry STOP = new Entry(null, null, null); // ends the writer
+    private final Path dir; // the segments directory
+    private final int REPLAY; // lines a joining user gets
+    private final long SEGMENT_BYTES; // a segment's largest size
+    private final long RETAIN_BYTES; // total size kept, older segments are deleted
+    private final long RETAIN_MILLIS; // age kept, older segments are deleted, 0 for any age
+    private final boolean SYNC; // fsync every batch
+    private final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>(); // lines not written yet and catch-ups
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>(); // oldest first, the last one is written, the writer's
+    private final Map<String, Ring> rooms = new HashMap<>(); // room -> its last lines, the writer's
+    private final Map<String, byte[]> names = new HashMap<>(); // room -> encoded name, the writer's
+    private ByteBuffer headers = ByteBuffer.allocate(16 * 1024); // a batch's records headers, the writer's
+    private long retained; // total size of the segments, the writer's
+    private Thread writer; // appends the queued lines
+
+    /**
+     * A queued line or catch-up
+     */
+    private static class Entry {
+        private final String room; // the room
+        private final EncodedMessage message; // the line, null for a catch-up
+        private final UserConnection user; // the joining user, null for a line
+
+        private Entry(String room, EncodedMessage message, UserConnection user) {
+            this.room = room;
+            this.message = message;
+            this.user = user;
+        }
+    }
+
+    /**
+     * One segment file
+     */
+    private static class Segment {
+        private final long id; // order of the segment, its file name
+        private final Path path; // the file
+        private FileChannel channel; // open while written, null once full
+        private MappedByteBuffer map; // the segment as far as a catch-up needed it, mapped on its first catch-up
+        private long size; // bytes written
+
+        private Segment(long id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    /**
+     * A room's last lines positions, oldest first from next
+     */
+    private static class Ring {
+        private final long[] segment; // line's segment id
+        private final int[] offset; // frame's offset in the segment
+        private final int[] length; // frame's length
+        private int next; // slot of the next line
+        private int count; // lines in the ring
+
+        private Ring(int size) {
+            segment = new long[size];
+            offset = new int[size];
+            length = new int[size];
+        }
+
+        private void add(long id, int at, int bytes) {
+            segment[next] = id;
+            offset[next] = at;
+            length[next] = bytes;
+            next = (next + 1) % segment.length;
+            count = Math.min(count + 1, segment.length);
+        }
+    }
+
+    /**
+     * Creates a log, use open()
+     *
+     * @param dir          - the segments directory
+     * @param replay       - lines a joining user gets
+     * @param segmentBytes - a segment's largest size
+     * @param retainBytes  - total size kept
+     * @param retainMillis - age kept, 0 for any age
+     * @param sync         - fsync every batch, or leave the lines to the OS
+     */
+    private ChatLog(Path dir, int replay, long segmentBytes, long retainBytes, long retainMillis, boolean sync) {
+        this.dir = dir;
+        REPLAY = replay;
+        SEGMENT_BYTES = segmentBytes;
+        RETAIN_BYTES = retainBytes;
+        RETAIN_MILLIS = retainMillis;
+        SYNC = sync;
+    }
+
+    /**
+     * Opens a log, recovering the rooms last lines from its segments, and starts its writer
+     *
+     * @param dir          - the segments directory, created if missing
+     * @param replay       - lines a joining user gets
+     * @param segmentBytes - a segment's largest size, at most 2GB
+     * @param retainBytes  - total size kept, older segments are deleted
+     * @param retainMillis - age kept, older segments are deleted, 0 for any age
+     * @param sync         - fsync every batch, or leave the lines to the OS
+     * @return - the log
+     * @throws IOException - the directory or the segments can't be read or written
+     */
+    public static ChatLog open(String dir, int replay, long segmentBytes, long retainBytes, long retainMillis, boolean sync)
+            throws IOException {
+        if (replay <= 0 || segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE || retainBytes < segmentBytes || retainMillis < 0)
+            throw new IllegalArgumentException("bad chat log settings");
+        final ChatLog log = new ChatLog(Paths.get(dir), replay, segmentBytes, retainBytes, retainMillis, sync);
+        log.recover();
+        log.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                log.write();
+            }
+        }, "chat-log");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        return log;
+    }
+
+    /**
+     * Queues a room's line, never waits for the disk
+     *
+     * @param room    - the room name
+     * @param message - the line, as sent to the room
+     */
+    public void append(String room, EncodedMessage message) {
+        pending.add(new Entry(room, message, null));
+    }
+
+    /**
+     * Queues a joining user's catch-up, the room's last lines are sent to the user once written
+     *
+     * @param room - the room name
+     * @param user - the user
+     */
+    public void replay(String room, UserConnection user) {
+        pending.add(new Entry(room, null, user));
+    }
+
+    /**
+     * Writes the queued lines and closes the log
+     */
+    public void close() {
+        pending.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the segments, rebuilds the rooms rings and cuts off a torn record at the end of the last segment
+     *
+     * @throws IOException - the directory or the segments can't be read or written
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(dir);
+        File[] files = dir.toFile().listFiles();
+        TreeMap<Long, Path> found = new TreeMap<>();
+        for (File f : files == null ? new File[0] : files) {
+            String name = f.getName();
+            if (!name.endsWith(SUFFIX))
+                continue;
+            try {
+                found.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), f.toPath());
+            } catch (NumberFormatException e) { // not a segment
+            }
+        }
+        for (Map.Entry<Long, Path> e : found.entrySet()) {
+            Segment s = new Segment(e.getKey(), e.getValue());
+            try (FileChannel channel = FileChannel.open(s.path, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length > 0)
+                    s.size = scan(s.id, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+                if (s.size < length) {
+                    System.out.println("ChatLog - Cutting a torn record off " + s.path + " at " + s.size);
+                    try (FileChannel w = FileChannel.open(s.path, StandardOpenOption.WRITE)) {
+                        w.truncate(s.size);
+                    }
+                }
+            }
+            segments.add(s);
+            retained += s.size;
+        }
+        if (segments.isEmpty())
+            segments.add(new Segment(0, segmentPath(0)));
+        Segment last = segments.getLast();
+        last.channel = FileChannel.open(last.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        last.channel.position(last.size);
+    }
+
+    /**
+     * Adds a segment's records to the rooms rings
+     *
+     * @param id      - the segment's id
+     * @param segment - the segment's bytes
+     * @return - end of the last whole record
+     */
+    private long scan(long id, ByteBuffer segment) {
+        int p = 0;
+        int end = segment.limit();
+        while (end - p >= 6) {
+            int length = segment.getInt(p);
+            int room = segment.getShort(p + 4) & 0xFFFF;
+            int frame = length - 2 - room;
+            if (length < 2 + room + Protocol.LENGTH_FIELD || end - p - 4 < length
+                    || segment.getInt(p + 6 + room) != frame - Protocol.LENGTH_FIELD)
+                break;
+            byte[] name = new byte[room];
+            segment.get(p + 6, name);
+            ring(new String(name, StandardCharsets.UTF_8)).add(id, p + 6 + room, frame);
+            p += 4 + length;
+        }
+        return p;
+    }
+
+    /**
+     * The writer's loop, appends a batch of lines at a time and serves catch-ups in turn
+     */
+    private void write() {
+        List<Entry> batch = new ArrayList<>();
+        List<Entry> lines = new ArrayList<>(); // lines of the batch not written yet
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                batch.add(STOP);
+            }
+            pending.drainTo(batch, BATCH - 1);
+            try {
+                for (Entry e : batch) {
+                    if (e == STOP) {
+                        stopping = true;
+                    } else if (e.user == null) {
+                        lines.add(e);
+                    } else { // the lines before the catch-up must be in it
+                        flush(lines);
+                        catchUp(e.room, e.user);
+                    }
+                }
+                flush(lines);
+                if (SYNC)
+                    segments.getLast().channel.force(false); // the batch's commit
+            } catch (IOException e) { // the lines are sent anyway, the log misses them
+                e.printStackTrace();
+                lines.clear();
+            } catch (RuntimeException e) { // a bad entry mustn't stop the log
+                e.printStackTrace();
+                lines.clear();
+            }
+            batch.clear();
+        }
+        try {
+            segments.getLast().channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes lines with gathering writes, starting new segments as they fill up
+     * the rooms rings get the lines once they are written, a failed write leaves the segment as it was
+     *
+     * @param lines - the lines, cleared once written
+     * @throws IOException - write failed
+     */
+    private void flush(List<Entry> lines) throws IOException {
+        int[] offsets = new int[lines.size()]; // every line's frame offset in its segment
+        int from = 0;
+        while (from < lines.size()) {
+            Segment s = segments.getLast();
+            headers.clear();
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long at = s.size;
+            int to = from;
+            for (; to < lines.size(); to++) {
+                Entry e = lines.get(to);
+                byte[] name = name(e.room);
+                byte[] frame = e.message.bytes();
+                int record = 4 + 2 + name.length + frame.length;
+                if (at + record > SEGMENT_BYTES && at > 0) // full, the rest goes to a new segment
+                    break;
+                if (headers.remaining() < 6 + name.length) // grown, the headers so far stay in the old buffer
+                    headers = ByteBuffer.allocate(Math.max(2 * headers.capacity(), 6 + name.length));
+                int h = headers.position();
+                headers.putInt(record - 4).putShort((short) name.length).put(name);
+                buffers.add(ByteBuffer.wrap(headers.array(), h, 6 + name.length));
+                buffers.add(ByteBuffer.wrap(frame));
+                offsets[to] = (int) (at + 6 + name.length);
+                at += record;
+            }
+            ByteBuffer[] all = buffers.toArray(new ByteBuffer[0]);
+            long left = at - s.size;
+            try {
+                while (left > 0) {
+                    left -= s.channel.write(all);
+                }
+            } catch (IOException e) { // a part may be written, the next lines go where it started
+                try {
+                    s.channel.truncate(s.size);
+                    s.channel.position(s.size);
+                } catch (IOException ignored) {
+                }
+                throw e;
+            }
+            for (int i = from; i < to; i++) {
+                Entry e = lines.get(i);
+                ring(e.room).add(s.id, offsets[i], e.message.length());
+            }
+            retained += at - s.size;
+            s.size = at;
+            if (to < lines.size())
+                roll();
+            from = to;
+        }
+        lines.clear();
+    }
+
+    /**
+     * Closes the full segment, starts the next one and deletes the segments past retention
+     *
+     * @throws IOException - the new segment can't be created
+     */
+    private void roll() throws IOException {
+        Segment full = segments.getLast();
+        full.channel.force(false);
+        full.channel.close();
+        full.channel = null;
+        Segment next = new Segment(full.id + 1, segmentPath(full.id + 1));
+        next.channel = FileChannel.open(next.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.add(next);
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            boolean old = RETAIN_MILLIS > 0 && now - Files.getLastModifiedTime(oldest.path).toMillis() > RETAIN_MILLIS;
+            if (retained <= RETAIN_BYTES && !old)
+                break;
+            segments.removeFirst();
+            retained -= oldest.size;
+            oldest.map = null;
+            Files.deleteIfExists(oldest.path);
+        }
+        long first = segments.getFirst().id;
+        Iterator<Map.Entry<String, Ring>> rings = rooms.entrySet().iterator();
+        while (rings.hasNext()) { // rooms whose lines were all deleted
+            Map.Entry<String, Ring> e = rings.next();
+            Ring r = e.getValue();
+            if (r.segment[(r.next + r.segment.length - 1) % r.segment.length] >= first)
+                continue;
+            names.remove(e.getKey());
+            rings.remove();
+        }
+    }
+
+    /**
+     * Sends a room's last lines to a joining user, each line a slice of its segment's mapping
+     *
+     * @param room - the room name
+     * @param user - the user
+     * @throws IOException - a segment can't be read
+     */
+    private void catchUp(String room, UserConnection user) throws IOException {
+        Ring r = rooms.get(room);
+        if (r == null || r.count == 0)
+            return;
+        long first = segments.getFirst().id;
+        int start = (r.next - r.count + r.segment.length) % r.segment.length; // the oldest line
+        for (int i = 0, slot = start; i < r.count; i++, slot = (slot + 1) % r.segment.length) {
+            if (r.segment[slot] < first) // deleted
+                continue;
+            int offset = r.offset[slot];
+            ByteBuffer line = map(find(r.segment[slot]), offset + r.length[slot]).duplicate();
+            line.position(offset).limit(offset + r.length[slot]);
+            user.send(EncodedMessage.wrap(line.slice()));
+        }
+    }
+
+    /**
+     * Returns a segment's mapping, mapping it on first use,
+     * the segment being written is mapped again as far as it's written whenever a line is past its mapping,
+     * the older mappings stay valid for the lines already queued from them
+     *
+     * @param s   - the segment
+     * @param end - the end of the line that's needed
+     * @return - the read only mapping, from the segment's start
+     * @throws IOException - the segment can't be mapped
+     */
+    private MappedByteBuffer map(Segment s, long end) throws IOException {
+        if (s.map == null || s.map.capacity() < end) {
+            if (s.channel != null) { // being written
+                s.map = s.channel.map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+            } else {
+                try (FileChannel c = FileChannel.open(s.path, StandardOpenOption.READ)) {
+                    s.map = c.map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+                }
+            }
+        }
+        return s.map;
+    }
+
+    /**
+     * Finds a retained segment
+     *
+     * @param id - the segment's id
+     * @return - the segment
+     */
+    private Segment find(long id) {
+        Iterator<Segment> it = segments.descendingIterator(); // recent lines are in recent segments
+        while (it.hasNext()) {
+            Segment s = it.next();
+            if (s.id == id)
+                return s;
+        }
+        throw new IllegalStateException("no segment " + id);
+    }
+
+    /**
+     * Returns a room's ring, creating it if needed
+     *
+     * @param room - the room name
+     * @return - the ring
+     */
+    private Ring ring(String room) {
+        Ring r = rooms.get(room);
+        if (r == null) {
+            r = new Ring(REPLAY);
+            rooms.put(room, r);
+        }
+        return r;
+    }
+
+    /**
+     * Returns a room's encoded name
+     *
+     * @param room - the room name
+     * @return - the name's UTF-8 bytes
+     */
+    private byte[] name(String room) {
+        byte[] name = names.get(room);
+        if (name == null) {
+            name = room.getBytes(StandardCharsets.UTF_8);
+            names.put(room, name);
+        }
+        return name;
+    }
+
+    /**
+     * Returns a segment's file
+     *
+     * @param id - the segment's id
+     * @return - the file's path
+     */
+    private Path segmentPath(long id) {
+        return dir.resolve(String.format("%020d", id) + SUFFIX);
+    }
+}
@@ -1,22 +1,210 @@
-import javax.swing.*;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Client class
  * A TCP Client connection manager for joining a chat room
+ * talks to the server in frames (see Protocol)
+ * frames are read with in(), blocking the caller, or streamed once subscribed (see subscribe() and listen()),
+ * a streaming client is served by a ClientLoop shared with other clients and holds no thread of its own,
+ * it reads only as many frames as its subscriber requested, the server's writes wait for the rest (backpressure)
+ * headless, the names to log in with are given by the caller (see Names), connecting and logging in time out,
+ * a streaming client may reconnect by itself after losing its connection (see setReconnect())
  *
  * @author - Eldar Erel
  * @version - 23.12.20
  */
-public class Client {
-    private boolean CONNECTED = false; // connection flag
-    private String userName; // the user name
-    private Socket socket; // connection socket
-    private ObjectInputStream in; // input stream
-    private PrintWriter out; // output stream
+public class Client implements Flow.Publisher<Frame> {
+    private final int MAX_MESSAGE_LENGTH = 16 * 1024; // longest chat line sent, fits the protocol's string limit
+    public static final int DEFAULT_PORT = 7777; // the server's default port
+    private final int READ_BUFFER = 64 * 1024; // bytes read at once
+    private final int CONNECT_TIMEOUT = 5000; // default time to connect and log in, milliseconds
+    private final int RECONNECT_NAMES = 5; // names tried when logging in again
+    private volatile boolean CONNECTED = false; // connection flag
+    private volatile String userName; // the user name
+    private volatile String loginName; // the name the connection logged in with, reconnects are numbered from it
+    private String host; // connected host, reconnected to
+    private int port; // connected port, reconnected to
+    private volatile String room; // the current room, null for the lobby, joined again on reconnecting
+    private volatile int connectTimeout = CONNECT_TIMEOUT; // time to connect and log in, milliseconds
+    private volatile long reconnectMin; // first reconnect's delay, 0 for not reconnecting
+    private volatile long reconnectMax; // longest reconnect delay
+    private volatile boolean closed; // closed by its owner, not reconnected
+    private volatile Listener listener; // the listener, if listening, told about reconnects
+    private SocketChannel channel; // connection channel, blocking until streamed
+    private final ClientLoop loop; // streams the frames once subscribed
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER); // read bytes not decoded yet, in read mode
+    private FrameDecoder decoder; // decodes the read bytes
+    private final Queue<ByteBuffer> outQueue = new ConcurrentLinkedQueue<>(); // frames waiting for the loop to write them
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(); // true while a flush is pending in the loop
+    private volatile Stream stream; // the subscription, null until subscribed
+    private SelectionKey key; // channel's key in the loop's selector, used by the loop only
+
+    /**
+     * A typed callback for each kind of frame, see listen()
+     * every method does nothing unless overridden, all of them are called on the client's loop
+     */
+    public static class Listener {
+        /**
+         * A chat line
+         *
+         * @param frame - the line, its sender, text and receive stamp
+         */
+        public void onChat(Frame frame) {
+        }
+
+        /**
+         * A trivia question
+         *
+         * @param frame - the question, its sender, number, text and receive stamp
+         */
+        public void onQuestion(Frame frame) {
+        }
+
+        /**
+         * A player's score
+         *
+         * @param frame - the score, its player and points
+         */
+        public void onScore(Frame frame) {
+        }
+
+        /**
+         * A user joined the room
+         *
+         * @param frame - the join, its user and users list version
+         */
+        public void onJoin(Frame frame) {
+        }
+
+        /**
+         * A user left the room
+         *
+         * @param frame - the leave, its user and users list version
+         */
+        public void onLeave(Frame frame) {
+        }
+
+        /**
+         * The room's users list
+         *
+         * @param frame - the list and its version
+         */
+        public void onUserList(Frame frame) {
+        }
+
+        /**
+         * Moved to a room
+         *
+         * @param frame - the room's name
+         */
+        public void onRoom(Frame frame) {
+        }
+
+        /**
+         * The connection was lost and made again, the client is back in its room
+         * frames sent to the client meanwhile are missed
+         */
+        public void onReconnected() {
+        }
+
+        /**
+         * The connection is closed
+         *
+         * @param error - what closed it, null if it was closed normally
+         */
+        public void onClosed(Throwable error) {
+        }
+    }
+
+    /**
+     * Chooses the names a client logs in with
+     */
+    public interface Names {
+        /**
+         * Returns the next name to try
+         *
+         * @param rejected - the last name tried, the server didn't approve it, null on the first try
+         * @return - the name, null to give up
+         */
+        String next(String rejected);
+    }
+
+    /**
+     * A subscriber's stream of the client's frames, driven by the client's loop
+     */
+    private class Stream implements Flow.Subscription {
+        private final Flow.Subscriber<? super Frame> subscriber; // gets the frames
+        private final AtomicLong demand = new AtomicLong(); // frames requested and not delivered yet, Long.MAX_VALUE for unbounded
+        private boolean done; // completed, failed or cancelled, used by the loop only
+
+        private Stream(Flow.Subscriber<? super Frame> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(new IllegalArgumentException("requested " + n + " frames"));
+                    }
+                });
+                return;
+            }
+            long before;
+            long after;
+            do {
+                before = demand.get();
+                after = before + n < 0 ? Long.MAX_VALUE : before + n; // saturates
+            } while (!demand.compareAndSet(before, after));
+            if (before == 0) // the loop stopped reading, resuming
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pump();
+                    }
+                });
+        }
+
+        @Override
+        public void cancel() {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done = true;
+                    closeConnection();
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a client streamed by one of the process's shared loops
+     */
+    public Client() {
+        this(ClientLoop.next());
+    }
+
+    /**
+     * Creates a client streamed by a given loop
+     *
+     * @param loop - the loop
+     */
+    public Client(ClientLoop loop) {
+        this.loop = loop;
+    }
 
     /**
      * Send message to the server
@@ -24,86 +212,554 @@ public class Client {
      * @param message - the message
      */
     public void sendMsg(String message) {
-        if (!message.isEmpty() && out != null)
-            out.println(message);
+        if (message.isEmpty())
+            return;
+        if (message.length() > MAX_MESSAGE_LENGTH)
+            message = message.substring(0, MAX_MESSAGE_LENGTH);
+        send(Frame.chat(null, message));
     }
 
     /**
-     * Connect to a given host (port 7777)
+     * Moves to a room, the room is created if it doesn't exist
      *
-     * @param host - the host
+     * @param room - the room name
+     */
+    public void joinRoom(String room) {
+        send(Frame.joinRoom(room));
+    }
+
+    /**
+     * Leaves the current room and goes back to the lobby
+     */
+    public void leaveRoom() {
+        send(Frame.leaveRoom());
+    }
+
+    /**
+     * Send a frame to the server
+     *
+     * @param frame - the frame
+     */
+    public synchronized void send(Frame frame) {
+        if (channel == null)
+            return;
+        if (stream != null) { // non blocking, written by the loop
+            outQueue.add(ByteBuffer.wrap(Protocol.encode(frame)));
+            if (writeScheduled.compareAndSet(false, true))
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            return;
+        }
+        try {
+            write(frame);
+        } catch (IOException e) {
+            drop(); // problem occurred
+        }
+    }
+
+    /**
+     * Writes a frame to the blocking connection
+     *
+     * @param frame - the frame
+     * @throws IOException - connection failed
+     */
+    private void write(Frame frame) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Protocol.encode(frame));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Connect to a given host and log in
+     *
+     * @param host  - the host
+     * @param port  - the server's port
+     * @param names - the names to try, asked again while the server doesn't approve them
      * @return - true if the connection was successful, false otherwise
      */
-    public boolean connect(String host) {
+    public boolean connect(String host, int port, Names names) {
+        closed = false;
+        stream = null;
+        room = null;
         try {
-            socket = new Socket(host, 7777); // creates connection
-            in = new ObjectInputStream(socket.getInputStream());
-            out = new PrintWriter(socket.getOutputStream(), true);
-            String name = JOptionPane.showInputDialog(null, "Enter your name:");
-            if (name == null) { // no name entered
-                name = JOptionPane.showInputDialog(null, "Must write name:");
+            open(host, port); // creates connection
+            if (login(names)) {
+                loginName = userName;
+                return true;
             }
-            if (name == null) { // closing app on second time
-                closeConnection();
+        } catch (IOException e) { // couldn't connect, or timed out
+        }
+        drop();
+        return false;
+    }
+
+    /**
+     * Connect to a given host without asking anything, for scripted clients
+     * a name that isn't approved is retried as name-1, name-2 and so on
+     *
+     * @param host     - the host
+     * @param port     - the server's port
+     * @param name     - the wanted username
+     * @param attempts - the maximum number of names to try
+     * @return - true if the connection was successful, false otherwise
+     */
+    public boolean connect(String host, int port, String name, int attempts) {
+        return connect(host, port, numbered(name, attempts));
+    }
+
+    /**
+     * Returns names to try as name, name-1, name-2 and so on
+     *
+     * @param name     - the wanted name
+     * @param attempts - the maximum number of names to try
+     * @return - the names
+     */
+    private static Names numbered(final String name, final int attempts) {
+        return new Names() {
+            private int tried; // names tried so far
+
+            @Override
+            public String next(String rejected) {
+                if (tried >= attempts)
+                    return null;
+                return tried++ == 0 ? name : name + "-" + (tried - 1);
+            }
+        };
+    }
+
+    /**
+     * Sets the time to connect and log in, a server that doesn't answer meanwhile fails the connection
+     *
+     * @param millis - the time in milliseconds, 0 to wait forever
+     */
+    public void setConnectTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout " + millis);
+        connectTimeout = millis;
+    }
+
+    /**
+     * Makes a streaming client reconnect by itself when its connection is lost, closeConnection() stops it
+     * attempts are delayed by an exponential backoff with jitter, so clients dropped together don't come back together,
+     * the client logs in with the name it connected with (or that name numbered if it's still taken) and joins its room again
+     *
+     * @param minMillis - delay before the first attempt, 0 for not reconnecting
+     * @param maxMillis - longest delay between attempts
+     */
+    public void setReconnect(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("reconnect " + minMillis + "-" + maxMillis);
+        reconnectMax = maxMillis;
+        reconnectMin = minMillis;
+    }
+
+    /**
+     * Opens a blocking connection, a new stream may be subscribed to it
+     *
+     * @param host - the host
+     * @param port - the server's port
+     * @throws IOException - connection failed or timed out
+     */
+    private synchronized void open(String host, int port) throws IOException {
+        SocketChannel c = SocketChannel.open();
+        try {
+            c.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        channel = c;
+        this.host = host;
+        this.port = port;
+        decoder = new FrameDecoder();
+        readBuffer.clear().flip(); // nothing read
+        outQueue.clear(); // lines sent while disconnected are dropped
+        writeScheduled.set(false);
+    }
+
+    /**
+     * Logs in on a new connection
+     *
+     * @param names - the names to try
+     * @return - true if a name was approved, false if none was or the connection was lost
+     * @throws IOException - connection failed or the server didn't answer in time
+     */
+    private boolean login(Names names) throws IOException {
+        channel.socket().setSoTimeout(connectTimeout);
+        CONNECTED = true;
+        String name = names.next(null);
+        while (name != null) {
+            write(Frame.login(name)); // sending name to get approval
+            Frame nameFeedback = read();
+            if (nameFeedback == null) // connection lost
                 return false;
+            if (nameFeedback.isApproved()) {
+                userName = name;
+                channel.socket().setSoTimeout(0);
+                return true;
             }
-            CONNECTED = true;
-            out.println(name); // sending name to get approval
-            Object nameFeedback = in.readObject();
-            while (!nameFeedback.equals("APPROVED")) { // server didnt approve the name
-                name = JOptionPane.showInputDialog(null, nameFeedback + " - Name already taken, please write a new name:");
-                if (name == null) {
-                    closeConnection();
-                    return false;
+            name = names.next(name); // server didnt approve the name
+        }
+        return false;
+    }
+
+    /**
+     * Makes the connection again after it was lost, some time from now
+     *
+     * @param s       - the stream, continued on the new connection
+     * @param attempt - attempts failed so far
+     */
+    private void reconnect(final Stream s, final int attempt) {
+        long limit = Math.min(reconnectMax, reconnectMin << Math.min(attempt, 20));
+        long delay = limit / 2 + ThreadLocalRandom.current().nextLong(limit / 2 + 1); // half fixed, half random
+        ClientLoop.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) // closed meanwhile, the stream was completed
+                    return;
+                boolean back = false;
+                try {
+                    open(host, port);
+                    back = login(numbered(loginName, RECONNECT_NAMES));
+                    String current = room;
+                    if (back && current != null && !current.equals(Protocol.LOBBY))
+                        write(Frame.joinRoom(current));
+                } catch (IOException e) { // server isn't back yet
+                    back = false;
+                }
+                if (!back) {
+                    CONNECTED = false;
+                    closeChannel();
+                    reconnect(s, attempt + 1);
+                    return;
+                }
+                if (closed) { // closed while logging in
+                    CONNECTED = false;
+                    closeChannel();
+                    return;
                 }
-                out.println(name);
-                nameFeedback = in.readObject();
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attach(s, true);
+                    }
+                });
             }
-            userName = name; // update name
-        } catch (IOException e) {
-            closeConnection();
-            return false;
-        } catch (ClassNotFoundException ignored) {
-        }
-        return true;
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Close the connection
+     * a subscriber is completed, a reconnecting client stops reconnecting
      */
     public void closeConnection() {
+        closed = true;
+        drop();
+    }
+
+    /**
+     * Closes the connection, a subscriber is completed unless the client reconnects
+     */
+    private void drop() {
         // performing safe shutdown
-        if (!CONNECTED)
-            return;
-        CONNECTED = false;
-        out.close();
+        if (CONNECTED) {
+            CONNECTED = false;
+            closeChannel();
+        }
+        if (stream != null)
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish(null);
+                }
+            });
+    }
+
+    /**
+     * Input a frame from the server, blocking until one arrives
+     * for clients that don't stream, returns null once subscribed
+     *
+     * @return - the frame, null if not connected or the connection was lost
+     */
+    public Frame in() {
+        if (channel == null || stream != null) // not connected, or streamed
+            return null;
         try {
-            in.close();
+            Frame frame = read();
+            if (frame == null) // server closed the connection
+                drop();
+            return frame;
+        } catch (IOException ei) {
+            drop(); // problem occurred
+            return null;
+        }
+    }
 
-        } catch (IOException ignored) {
+    /**
+     * Reads a frame from the blocking connection, within the socket's timeout
+     *
+     * @return - the frame, null if the server closed the connection
+     * @throws IOException - connection failed or timed out
+     */
+    private Frame read() throws IOException {
+        Frame frame;
+        while ((frame = decode()) == null) { // everything read was decoded
+            int n = channel.socket().getInputStream().read(readBuffer.array(), 0, readBuffer.capacity());
+            if (n < 0)
+                return null;
+            readBuffer.limit(n).position(0);
         }
+        return frame;
+    }
+
+    /**
+     * Decodes the next frame read, keeping track of the client's room
+     *
+     * @return - the frame, null if a whole frame wasn't read yet
+     * @throws IOException - malformed frame
+     */
+    private Frame decode() throws IOException {
+        Frame frame = decoder.next(readBuffer);
+        if (frame != null && frame.getType() == Frame.Type.JOIN_ROOM)
+            room = frame.getText();
+        return frame;
+    }
+
+    /**
+     * Closes the channel, ignoring errors
+     */
+    private void closeChannel() {
         try {
-            socket.close();
+            channel.close();
         } catch (IOException ignored) {
         }
     }
 
     /**
-     * Input data from the server
+     * Streams the frames from the server to a subscriber, once connected
+     * the subscriber is called on the client's loop, in order, never more frames than it requested,
+     * it completes when the connection is closed or lost, unless the client reconnects,
+     * a client has one subscriber at most
      *
-     * @return - the data, null if not connected or nothing has received
+     * @param subscriber - the subscriber
      */
-    public Object in() {
-        if (in == null) // not connected
-            return null;
+    @Override
+    public void subscribe(final Flow.Subscriber<? super Frame> subscriber) {
+        final Stream s = new Stream(subscriber);
+        synchronized (this) {
+            if (channel == null || stream != null) {
+                s.done = true;
+                subscriber.onSubscribe(s);
+                subscriber.onError(new IllegalStateException(channel == null ? "not connected" : "already subscribed"));
+                return;
+            }
+            stream = s; // the senders queue from now on
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                attach(s, false);
+            }
+        });
+    }
+
+    /**
+     * Streams the frames from the server to a listener, every frame as it arrives
+     *
+     * @param listener - the listener
+     */
+    public void listen(final Listener listener) {
+        this.listener = listener;
+        subscribe(new Flow.Subscriber<Frame>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Frame frame) {
+                switch (frame.getType()) {
+                    case CHAT:
+                        listener.onChat(frame);
+                        break;
+                    case QUESTION:
+                        listener.onQuestion(frame);
+                        break;
+                    case SCORE:
+                        listener.onScore(frame);
+                        break;
+                    case JOIN:
+                        listener.onJoin(frame);
+                        break;
+                    case LEAVE:
+                        listener.onLeave(frame);
+                        break;
+                    case USER_LIST:
+                        listener.onUserList(frame);
+                        break;
+                    case JOIN_ROOM:
+                        listener.onRoom(frame);
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                listener.onClosed(error);
+            }
+
+            @Override
+            public void onComplete() {
+                listener.onClosed(null);
+            }
+        });
+    }
+
+    /**
+     * Registers the channel with the loop and starts the stream, called by the loop only
+     *
+     * @param s     - the stream
+     * @param again - true if the stream continues on a new connection
+     */
+    private void attach(Stream s, boolean again) {
+        if (!again)
+            s.subscriber.onSubscribe(s);
+        else if (s.done) // cancelled while reconnecting
+            return;
         try {
-            return in.readObject();
-        } catch (IOException ei) {
-            closeConnection(); // problem occurred
-            return null;
-        } catch (ClassNotFoundException e) {
-            return null;
+            synchronized (this) { // no blocking send is in progress
+                channel.configureBlocking(false);
+                key = channel.register(loop.selector(), 0, this);
+            }
+        } catch (IOException e) { // closed meanwhile
+            finish(e);
+            return;
         }
+        if (again && listener != null)
+            listener.onReconnected();
+        if (!outQueue.isEmpty())
+            flush();
+        pump();
+    }
+
+    /**
+     * Delivers the requested frames, reading more as needed, called by the loop only
+     * reads once at most, so one busy client can't hold the loop
+     */
+    void pump() {
+        Stream s = stream;
+        if (s == null || s.done || key == null)
+            return;
+        boolean read = false;
+        try {
+            while (true) {
+                if (s.demand.get() == 0) { // the subscriber has enough, the socket's buffer fills up
+                    interest(SelectionKey.OP_READ, false);
+                    return;
+                }
+                Frame frame = decode();
+                if (frame != null) {
+                    if (s.demand.get() != Long.MAX_VALUE)
+                        s.demand.decrementAndGet();
+                    try {
+                        s.subscriber.onNext(frame);
+                    } catch (RuntimeException e) { // a failing subscriber mustn't stop the loop
+                        e.printStackTrace();
+                    }
+                    if (s.done)
+                        return;
+                    continue;
+                }
+                if (read) {
+                    interest(SelectionKey.OP_READ, true);
+                    return;
+                }
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                readBuffer.flip();
+                if (n < 0) { // server closed the connection
+                    finish(null);
+                    return;
+                }
+                read = true;
+            }
+        } catch (IOException e) { // connection lost, or a malformed frame
+            finish(e);
+        }
+    }
+
+    /**
+     * Writes the queued frames, called by the loop only
+     */
+    void flush() {
+        if (key == null || !key.isValid()) { // not attached yet, or reconnecting, attach() flushes
+            writeScheduled.set(false);
+            return;
+        }
+        try {
+            while (true) {
+                ByteBuffer b;
+                while ((b = outQueue.peek()) != null) {
+                    channel.write(b);
+                    if (b.hasRemaining()) { // socket buffer is full, waiting until writable
+                        interest(SelectionKey.OP_WRITE, true);
+                        return;
+                    }
+                    outQueue.poll();
+                }
+                interest(SelectionKey.OP_WRITE, false);
+                writeScheduled.set(false);
+                if (outQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) // nothing was added meanwhile
+                    return;
+            }
+        } catch (IOException e) {
+            finish(e);
+        }
+    }
+
+    /**
+     * Ends the stream and closes the connection, or reconnects if the connection was lost, called by the loop only
+     *
+     * @param error - what ended it, null if the connection was closed
+     */
+    private void finish(Throwable error) {
+        Stream s = stream;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        CONNECTED = false;
+        closeChannel();
+        if (s == null || s.done)
+            return;
+        boolean lost = error == null || error instanceof IOException; // not the subscriber's fault
+        if (lost && !closed && reconnectMin > 0) {
+            reconnect(s, 0);
+            return;
+        }
+        s.done = true;
+        if (error == null)
+            s.subscriber.onComplete();
+        else
+            s.subscriber.onError(error);
+    }
+
+    /**
+     * Turns an interest of the channel's key on or off
+     *
+     * @param op - the interest
+     * @param on - true for on
+     */
+    private void interest(int op, boolean on) {
+        if (key.isValid())
+            key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
     }
 
     /**
@@ -21,7 +21,9 @@ public class ClientGui implements ActionListener {
     private JTextArea txtRoom; // room's txt area
     private JTextField txtClient; // client's txt field
     private JButton cmdSend; // send msg button
-    private DefaultListModel<String> userNames; // active users list model
+    private DefaultListModel<String> userNames; // active users list model, sorted
+    private long usersSeq; // version of the shown users list
+    private boolean resyncRequested; // asked the server for a full users list, waiting for it
     // menu items
     private JMenuItem connect;
     private JMenuItem disconnect;
@@ -150,9 +152,15 @@ public class ClientGui implements ActionListener {
      * Sends a message
      */
     private void sendMsg() {
-        if (txtClient.getText().isEmpty()) // nothing to send
+        String txt = txtClient.getText();
+        if (txt.isEmpty()) // nothing to send
             return;
-        connectionManager.sendMsg(txtClient.getText());
+        if (txt.startsWith("/join ")) // room commands
+            connectionManager.joinRoom(txt.substring(6).trim());
+        else if (txt.equals("/leave"))
+            connectionManager.leaveRoom();
+        else
+            connectionManager.sendMsg(txt);
         txtClient.setText("");
         txtClient.requestFocusInWindow();
     }
@@ -164,7 +172,17 @@ public class ClientGui implements ActionListener {
             if (host == null)
                 return;
             showToClient("Trying to connect to " + host);
-            if (!connectionManager.connect(host)) { // connect to host
+            if (!connectionManager.connect(host, Client.DEFAULT_PORT, new Client.Names() { // connect to host
+                @Override
+                public String next(String rejected) {
+                    if (rejected != null) // server didnt approve the name
+                        return JOptionPane.showInputDialog(null, "NOT APPROVED - Name already taken, please write a new name:");
+                    String name = JOptionPane.showInputDialog(null, "Enter your name:");
+                    if (name == null) // no name entered
+                        name = JOptionPane.showInputDialog(null, "Must write name:");
+                    return name; // closing app on second time
+                }
+            })) {
                 showToClient("Couldn't connect to " + host);
                 connect.setEnabled(true);
                 return;
@@ -198,17 +216,62 @@ public class ClientGui implements ActionListener {
     /**
      * Updates the active users list view
      *
-     * @param input - the new users list
+     * @param names - the new users list, sorted
+     * @param seq   - the list's version
      */
-    private void updateUsersList(Object input) { // updating the view of the active users in the chat
-        if (!(input instanceof Object[]))
-            return;
-        Object[] in = (Object[]) input;
+    private void updateUsersList(String[] names, long seq) { // updating the view of the active users in the chat
         userNames.clear();
-        for (Object o : in) {
-            if (o instanceof String)
-                userNames.addElement((String) o);
+        for (String name : names) {
+            userNames.addElement(name);
+        }
+        usersSeq = seq;
+        resyncRequested = false;
+    }
+
+    /**
+     * Applies a JOIN or LEAVE to the active users list view
+     * a change the list already has is ignored, a missed change asks the server for the full list
+     *
+     * @param change - the JOIN or LEAVE frame
+     */
+    private void applyUsersChange(Frame change) {
+        if (change.getSeq() <= usersSeq) // already in the list
+            return;
+        if (change.getSeq() != usersSeq + 1) { // missed a change
+            if (!resyncRequested) {
+                resyncRequested = true;
+                connectionManager.send(Frame.resync());
+            }
+            return;
         }
+        int i = indexOf(change.getName());
+        if (change.getType() == Frame.Type.JOIN && i < 0)
+            userNames.add(-i - 1, change.getName());
+        else if (change.getType() == Frame.Type.LEAVE && i >= 0)
+            userNames.remove(i);
+        usersSeq = change.getSeq();
+    }
+
+    /**
+     * Binary searches the sorted users list view
+     *
+     * @param name - the username
+     * @return - its index, or (-(insertion point) - 1) if it's not in the list
+     */
+    private int indexOf(String name) {
+        int low = 0;
+        int high = userNames.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = userNames.get(mid).compareTo(name);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
     }
 
     /**
@@ -236,24 +299,63 @@ public class ClientGui implements ActionListener {
      * listens to incoming inputs from the server
      */
     private void listen() { // dealing with income messages from server
-        new Thread(new Runnable() {
+        connectionManager.listen(new Client.Listener() {
             @Override
-            public void run() {
-                while (connectionManager.isConnected()) {
-                    Object input = connectionManager.in();
-                    if (input instanceof String) { // if its a chat msg show it in the app screen
-                        SimpleDateFormat fo = new SimpleDateFormat("[hh:mm:ss] ");
-                        String date = fo.format(new Date());
-                        showToClient(date + input);
-                    } else if (input instanceof Object[]) { // if its the usernames list update it
-                        updateUsersList(input);
-                    }
-                }
+            public void onChat(Frame input) { // if its a chat msg show it in the app screen
+                showToClient(date() + input.getName() + ": " + input.getText());
+            }
+
+            @Override
+            public void onJoin(Frame input) {
+                if (input.getName().equals(connectionManager.getName()))
+                    showToClient(date() + "You Joined the room");
+                else
+                    showToClient(date() + input.getName() + " Has Joined The Room.");
+                applyUsersChange(input);
+            }
+
+            @Override
+            public void onLeave(Frame input) {
+                showToClient(date() + input.getName() + " Has Left The Room.");
+                applyUsersChange(input);
+            }
+
+            @Override
+            public void onQuestion(Frame input) {
+                showToClient(date() + input.getName() + ": The Question is: " + input.getText());
+            }
+
+            @Override
+            public void onScore(Frame input) {
+                showToClient(date() + input.getName() + " has " + input.getNumber() + " points.");
+            }
+
+            @Override
+            public void onRoom(Frame input) { // moved to a room
+                showToClient(date() + "You are in room " + input.getText() + " (/join room, /leave)");
+            }
+
+            @Override
+            public void onUserList(Frame input) { // if its the usernames list update it
+                updateUsersList(input.getNames(), input.getSeq());
+            }
+
+            @Override
+            public void onClosed(Throwable error) {
                 if (!connect.isEnabled()) // connect button is disabled = lost connection
                     connectionLost();
             }
-        }).start();
+        });
+    }
 
+    /**
+     * Returns the time prefix of a displayed line
+     *
+     * @return - the current time, formatted
+     */
+    private String date() {
+        SimpleDateFormat fo = new SimpleDateFormat("[hh:mm:ss] ");
+        return fo.format(new Date());
     }
 
     public static void main(String[] args) {
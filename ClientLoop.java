@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClientLoop class
+ * An I/O thread shared by any number of clients that stream their frames (see Client.subscribe)
+ * owns a selector, reads and writes of its clients are non blocking,
+ * so a process with many bots or test clients parks a few threads instead of a thread per client
+ * the frames are delivered on the loop's thread, subscribers must not block,
+ * a subscriber or listener that throws is reported and the loop goes on serving its other clients
+ * the process's clients share a pool of loops, one per core, handed out in turn (see next())
+ */
+public class ClientLoop extends Thread {
+    private static final int POOL = Runtime.getRuntime().availableProcessors(); // loops in the shared pool
+    private static ClientLoop[] pool; // the process's shared loops, created on first use
+    private static int turn; // next loop handed out
+    private static ScheduledThreadPoolExecutor timer; // runs the clients' reconnects, created on first use
+    private final Selector selector; // the loop's selector
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // work handed to the loop by other threads
+
+    /**
+     * Creates a loop, start() it before use
+     *
+     * @param name - the thread's name
+     * @throws IOException - couldn't open a selector
+     */
+    public ClientLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Returns one of the process's shared loops, in turn, the pool is started on first use
+     *
+     * @return - the loop
+     */
+    public static synchronized ClientLoop next() {
+        if (pool == null) {
+            ClientLoop[] loops = new ClientLoop[POOL];
+            for (int i = 0; i < POOL; i++) {
+                try {
+                    loops[i] = new ClientLoop("client-io-" + (i + 1));
+                } catch (IOException e) {
+                    throw new IllegalStateException("could not open a selector", e);
+                }
+                loops[i].start();
+            }
+            pool = loops;
+        }
+        ClientLoop loop = pool[turn];
+        turn = (turn + 1) % POOL;
+        return loop;
+    }
+
+    /**
+     * Returns the process's timer for reconnecting clients, its threads may block on connecting
+     *
+     * @return - the timer
+     */
+    static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            final AtomicInteger count = new AtomicInteger();
+            timer = new ScheduledThreadPoolExecutor(POOL, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "client-reconnect-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Returns the loop's selector, used by the loop's thread only
+     *
+     * @return - the selector
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Runs a task on the loop's thread
+     *
+     * @param task - the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) // the loop runs its own tasks before selecting again
+            selector.wakeup();
+    }
+
+    /**
+     * Loop's main method
+     * runs the handed tasks and serves the ready clients
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) { // a failing subscriber mustn't stop the loop
+                        e.printStackTrace();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable())
+                            client.flush();
+                        if (key.isValid() && key.isReadable())
+                            client.pump();
+                    } catch (RuntimeException e) { // a failing subscriber mustn't stop the loop
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
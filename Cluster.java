@@ -0,0 +1,349 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster class
+ * A server's membership in a cluster of server nodes, so clients of any node see the same rooms
+ * room broadcasts are forwarded to the other nodes, which deliver them to their own members,
+ * joins and leaves are forwarded as presence changes, every node keeps its own users list versions,
+ * every username is owned by one node (by hash), which decides who may claim it
+ * messages to a node are batched and sent every few milliseconds, or once a batch is full,
+ * so a chat storm costs one transport send per node per flush instead of one per message
+ * the nodes list is fixed when the cluster starts, nodes failures are not detected
+ */
+public class Cluster {
+    private static final byte BROADCAST = 1; // room, encoded frame
+    private static final byte JOIN = 2; // room, name
+    private static final byte LEAVE = 3; // room, name
+    private static final byte CLAIM = 4; // claim id, name
+    private static final byte CLAIMED = 5; // claim id, name, approved
+    private static final byte RELEASE = 6; // name
+    private static final byte SYNC = 7; // asks a node for all of its rooms members
+    private final int FLUSH_MILLIS = 2; // longest time a message waits in a batch
+    private final int MAX_BATCH_BYTES = 64 * 1024; // a batch this big is sent at once
+    private final long CLAIM_TIMEOUT_MILLIS = 5000; // unanswered claims fail after it
+    private final Server server; // the local node's server
+    private final ClusterTransport transport; // moves the batches
+    private final String LOCAL; // this node's name
+    private final Map<String, Batch> batches = new HashMap<>(); // other node -> its pending batch, fixed on start
+    private final ConcurrentHashMap<String, String> owned = new ConcurrentHashMap<>(); // names owned by this node -> node holding the name
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> claims = new ConcurrentHashMap<>(); // claim id -> waiting login
+    private final AtomicLong claimIds = new AtomicLong(); // claim id generator
+    private final ScheduledExecutorService timer; // flushes the batches and times out the claims
+    private String[] nodes; // all the nodes, the same on every node
+
+    /**
+     * Messages waiting to be sent to one node
+     */
+    private static class Batch {
+        private final String node; // destination
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(); // the messages, one after another
+
+        private Batch(String node) {
+            this.node = node;
+        }
+
+        /**
+         * Adds a message
+         *
+         * @param message - the encoded message
+         * @return - the batch's size
+         */
+        private synchronized int add(byte[] message) {
+            bytes.write(message, 0, message.length);
+            return bytes.size();
+        }
+
+        /**
+         * Sends the pending messages
+         * done under the batch's lock, so batches to the node never overtake each other
+         *
+         * @param transport - the transport
+         */
+        private synchronized void flush(ClusterTransport transport) {
+            if (bytes.size() == 0)
+                return;
+            byte[] batch = bytes.toByteArray();
+            bytes.reset();
+            transport.send(node, batch);
+        }
+    }
+
+    /**
+     * Creates a server's cluster membership
+     *
+     * @param server    - the server
+     * @param transport - the transport to the other nodes
+     */
+    public Cluster(Server server, ClusterTransport transport) {
+        this.server = server;
+        this.transport = transport;
+        LOCAL = transport.localNode();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cluster-" + LOCAL);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Joins the cluster
+     * all the nodes must exist in the transport by now,
+     * the other nodes are asked for their rooms members
+     *
+     * @throws IOException - the transport couldn't start
+     */
+    public void start() throws IOException {
+        List<String> all = transport.nodes();
+        nodes = all.toArray(new String[0]);
+        for (String node : nodes) {
+            if (!node.equals(LOCAL))
+                batches.put(node, new Batch(node));
+        }
+        transport.start(new ClusterTransport.Receiver() {
+            @Override
+            public void receive(String from, byte[] batch) {
+                onBatch(from, batch);
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        sendAll(new byte[]{SYNC});
+        server.console("Cluster node " + LOCAL + " of " + nodes.length + " nodes.");
+    }
+
+    /**
+     * Leaves the cluster
+     */
+    public void close() {
+        flush();
+        timer.shutdown();
+        transport.close();
+    }
+
+    /**
+     * Claims a username in the whole cluster
+     * answered at once if this node owns the name, otherwise by the owner node
+     *
+     * @param name - the username
+     * @return - completes with true if the name was free and is now taken, false otherwise
+     */
+    public CompletableFuture<Boolean> claim(String name) {
+        String owner = ownerOf(name);
+        if (owner.equals(LOCAL))
+            return CompletableFuture.completedFuture(owned.putIfAbsent(name, LOCAL) == null);
+        final long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> claim = new CompletableFuture<>();
+        claims.put(id, claim);
+        send(owner, message(CLAIM, id, name));
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                CompletableFuture<Boolean> late = claims.remove(id);
+                if (late != null) // the owner didn't answer
+                    late.complete(false);
+            }
+        }, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return claim;
+    }
+
+    /**
+     * Releases a username claimed by this node
+     *
+     * @param name - the username
+     */
+    public void release(String name) {
+        String owner = ownerOf(name);
+        if (owner.equals(LOCAL))
+            owned.remove(name, LOCAL);
+        else
+            send(owner, message(RELEASE, name));
+    }
+
+    /**
+     * Forwards a room broadcast to the other nodes
+     *
+     * @param room    - the room name
+     * @param message - the encoded frame
+     */
+    public void publish(String room, EncodedMessage message) {
+        byte[] frame = message.bytes();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length + room.length() + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(BROADCAST);
+            out.writeUTF(room);
+            out.writeInt(frame.length);
+            out.write(frame);
+        } catch (IOException ignored) { // in memory
+        }
+        sendAll(bytes.toByteArray());
+    }
+
+    /**
+     * Forwards a local user's join to a room
+     *
+     * @param room - the room name
+     * @param name - the username
+     */
+    public void publishJoin(String room, String name) {
+        sendAll(message(JOIN, room, name));
+    }
+
+    /**
+     * Forwards a local user's leave of a room
+     *
+     * @param room - the room name
+     * @param name - the username
+     */
+    public void publishLeave(String room, String name) {
+        sendAll(message(LEAVE, room, name));
+    }
+
+    /**
+     * Returns the node owning a username
+     *
+     * @param name - the username
+     * @return - the node's name
+     */
+    private String ownerOf(String name) {
+        return nodes[(name.hashCode() & 0x7FFFFFFF) % nodes.length];
+    }
+
+    /**
+     * Adds a message to the batches of all the other nodes
+     *
+     * @param message - the encoded message
+     */
+    private void sendAll(byte[] message) {
+        for (Batch b : batches.values()) {
+            if (b.add(message) >= MAX_BATCH_BYTES)
+                b.flush(transport);
+        }
+    }
+
+    /**
+     * Adds a message to a node's batch
+     *
+     * @param node    - the node
+     * @param message - the encoded message
+     */
+    private void send(String node, byte[] message) {
+        Batch b = batches.get(node);
+        if (b != null && b.add(message) >= MAX_BATCH_BYTES)
+            b.flush(transport);
+    }
+
+    /**
+     * Sends all the pending batches
+     */
+    private void flush() {
+        for (Batch b : batches.values()) {
+            b.flush(transport);
+        }
+    }
+
+    /**
+     * Encodes a message of a kind and its fields
+     *
+     * @param kind   - message kind
+     * @param fields - strings, longs or booleans, in the kind's order
+     * @return - the encoded message
+     */
+    private static byte[] message(byte kind, Object... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(kind);
+            for (Object f : fields) {
+                if (f instanceof String)
+                    out.writeUTF((String) f);
+                else if (f instanceof Long)
+                    out.writeLong((Long) f);
+                else
+                    out.writeBoolean((Boolean) f);
+            }
+        } catch (IOException ignored) { // in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deals with a batch from another node
+     * called by the transport, one batch at a time
+     *
+     * @param from  - the sending node
+     * @param batch - the batch
+     */
+    private void onBatch(String from, byte[] batch) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        try {
+            while (in.available() > 0) {
+                byte kind = in.readByte();
+                switch (kind) {
+                    case BROADCAST:
+                        String room = in.readUTF();
+                        byte[] frame = new byte[in.readInt()];
+                        in.readFully(frame);
+                        server.remoteBroadcast(room, EncodedMessage.wrap(frame));
+                        break;
+                    case JOIN:
+                        server.remoteJoin(in.readUTF(), in.readUTF());
+                        break;
+                    case LEAVE:
+                        server.remoteLeave(in.readUTF(), in.readUTF());
+                        break;
+                    case CLAIM:
+                        long id = in.readLong();
+                        String claimed = in.readUTF();
+                        boolean approved = owned.putIfAbsent(claimed, from) == null;
+                        send(from, message(CLAIMED, id, claimed, approved));
+                        break;
+                    case CLAIMED:
+                        CompletableFuture<Boolean> claim = claims.remove(in.readLong());
+                        String name = in.readUTF();
+                        boolean ok = in.readBoolean();
+                        if (claim != null)
+                            claim.complete(ok);
+                        else if (ok) // timed out meanwhile, give the name back
+                            send(from, message(RELEASE, name));
+                        break;
+                    case RELEASE:
+                        owned.remove(in.readUTF(), from);
+                        break;
+                    case SYNC:
+                        for (Room r : server.rooms()) {
+                            for (String member : r.localNames()) {
+                                send(from, message(JOIN, r.getName(), member));
+                            }
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown cluster message " + kind);
+                }
+            }
+        } catch (IOException e) {
+            server.console("Bad batch from node " + from + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ClusterTransport interface
+ * Carries batches of cluster messages between the server nodes (see Cluster)
+ * a transport only moves bytes, it must keep the order of the batches sent to each node
+ */
+public interface ClusterTransport {
+    /**
+     * Gets the batches sent to this node
+     */
+    interface Receiver {
+        /**
+         * Called for every batch, one at a time, in the order the sender sent them
+         *
+         * @param from  - the sending node
+         * @param batch - the batch
+         */
+        void receive(String from, byte[] batch);
+    }
+
+    /**
+     * Returns this node's name
+     *
+     * @return - the name
+     */
+    String localNode();
+
+    /**
+     * Returns all the cluster's nodes, this one included
+     * every node must get the same list in the same order
+     *
+     * @return - the nodes names
+     */
+    List<String> nodes();
+
+    /**
+     * Starts receiving batches
+     *
+     * @param receiver - gets the batches
+     * @throws IOException - couldn't start
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Sends a batch to a node, without waiting for it to be delivered
+     * the transport owns the array from now on
+     *
+     * @param node  - the destination node
+     * @param batch - the batch
+     */
+    void send(String node, byte[] batch);
+
+    /**
+     * Stops the transport
+     */
+    void close();
+}
@@ -0,0 +1,153 @@
+import java.nio.ByteBuffer;
+
+/**
+ * EncodedMessage class
+ * A frame encoded once and written as is to any number of clients
+ * frames don't depend on what was written before them,
+ * so the same bytes are valid in every client's stream
+ * the encoding time is kept, the users writers measure their send latency from it
+ * channel writes use the heap bytes, NIO copies them into its cached per thread direct buffer,
+ * only a frame sent to many users gets a direct copy of its own, allocated once and shared by all the writes
+ * a frame may also live in memory the message doesn't own, such as a mapped chat log segment, and is written from it as is
+ */
+public class EncodedMessage {
+    public static final int DIRECT_FAN_OUT = 32; // recipients from which a frame is worth a direct copy
+    private volatile byte[] bytes; // the encoded frame, copied from view on the first stream write if there's a view
+    private final ByteBuffer view; // read only frame in memory the message doesn't own, null for heap bytes
+    private final long created = System.nanoTime(); // encoding time
+    private volatile boolean fanOut; // sent to many users, written from a direct copy
+    private volatile ByteBuffer buffer; // read only direct copy of bytes, created for the first channel write of a fan out
+
+    /**
+     * Creates a message from encoded bytes
+     *
+     * @param bytes - the encoded frame
+     */
+    private EncodedMessage(byte[] bytes) {
+        this.bytes = bytes;
+        view = null;
+    }
+
+    /**
+     * Creates a message over a frame in memory it doesn't own
+     *
+     * @param view - the encoded frame, from its position to its limit
+     */
+    private EncodedMessage(ByteBuffer view) {
+        this.view = view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a frame into a message
+     *
+     * @param frame - the frame
+     * @return - the message
+     */
+    public static EncodedMessage of(Frame frame) {
+        return new EncodedMessage(Protocol.encode(frame));
+    }
+
+    /**
+     * Wraps a frame that was already encoded, such as one forwarded by another cluster node
+     *
+     * @param bytes - the encoded frame, including its length prefix
+     * @return - the message
+     */
+    public static EncodedMessage wrap(byte[] bytes) {
+        return new EncodedMessage(bytes);
+    }
+
+    /**
+     * Wraps a frame without copying it, such as a slice of a mapped file, the memory must not change while it's sent
+     *
+     * @param frame - the encoded frame, including its length prefix, from its position to its limit
+     * @return - the message
+     */
+    public static EncodedMessage wrap(ByteBuffer frame) {
+        return new EncodedMessage(frame);
+    }
+
+    /**
+     * Returns the encoded frame for stream writes
+     * the array is shared, callers must not change it, a frame the message doesn't own is copied once
+     *
+     * @return - the encoded frame
+     */
+    public byte[] bytes() {
+        byte[] b = bytes;
+        if (b == null) {
+            b = new byte[view.remaining()];
+            view.duplicate().get(b);
+            bytes = b;
+        }
+        return b;
+    }
+
+    /**
+     * Returns the encoded frame's length
+     *
+     * @return - the length in bytes, including the length prefix
+     */
+    public int length() {
+        return view != null ? view.remaining() : bytes.length;
+    }
+
+    /**
+     * Copies the encoded frame into a buffer, for writers that coalesce frames
+     *
+     * @param dst - the buffer
+     * @param at  - where the frame goes in it
+     */
+    public void copyTo(byte[] dst, int at) {
+        if (view != null)
+            view.get(view.position(), dst, at, view.remaining());
+        else
+            System.arraycopy(bytes, 0, dst, at, bytes.length);
+    }
+
+    /**
+     * Returns the time the message was encoded
+     *
+     * @return - System.nanoTime() of the encoding
+     */
+    public long created() {
+        return created;
+    }
+
+    /**
+     * Marks the message as sent to many users, its channel writes share one direct copy
+     * called before it's sent to any of them
+     */
+    public void fanOut() {
+        fanOut = true;
+    }
+
+    /**
+     * Returns the encoded frame for channel writes
+     * every call gets its own position over the same memory, the heap bytes unless the message fans out
+     *
+     * @return - a read only view of the frame
+     */
+    public ByteBuffer buffer() {
+        if (view != null) // written straight from where it lives
+            return view.duplicate();
+        if (!fanOut) // a direct allocation costs more than the copy NIO makes
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        ByteBuffer b = buffer;
+        if (b == null)
+            buffer = b = direct(bytes);
+        return b.duplicate();
+    }
+
+    /**
+     * Copies bytes into a read only direct buffer
+     *
+     * @param bytes - the bytes
+     * @return - the buffer
+     */
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer b = ByteBuffer.allocateDirect(bytes.length);
+        b.put(bytes).flip();
+        return b.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Frame class
+ * A single typed message of the chat protocol (see Protocol for the wire format)
+ * frames are immutable and may be shared between threads
+ */
+public class Frame {
+    /**
+     * Frame types and their wire codes
+     */
+    public enum Type {
+        LOGIN(1), // client asks for a username: name
+        LOGIN_ACK(2), // server answers a login: number is 1 if approved, 0 otherwise
+        CHAT(3), // chat line: name is the sender (empty from a client), text, seq and time are the server's receive stamp
+        JOIN(4), // a user joined the room: name, seq is the users list version after the join
+        LEAVE(5), // a user left the room: name, seq is the users list version after the leave
+        USER_LIST(6), // the room's users: names, seq is the users list version
+        QUESTION(7), // trivia question: name is the sender, number is the question number, text, seq and time as in CHAT
+        SCORE(8), // player's score: name is the player, number is the score, not accepted from clients
+        RESYNC(9), // client missed a users list change and asks for a new USER_LIST
+        JOIN_ROOM(10), // client asks to move to the room named text, the server answers with the user's new room
+        LEAVE_ROOM(11); // client leaves its room and goes back to the lobby
+
+        private final byte code; // wire code
+        private static final Type[] BY_CODE = new Type[16]; // code -> type
+
+        static {
+            for (Type t : values()) {
+                BY_CODE[t.code] = t;
+            }
+        }
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        /**
+         * Returns the type's wire code
+         *
+         * @return - the code
+         */
+        public byte code() {
+            return code;
+        }
+
+        /**
+         * Returns the type of a wire code
+         *
+         * @param code - the code
+         * @return - the type, null if the code is unknown
+         */
+        public static Type of(int code) {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+    }
+
+    private static final String[] NO_NAMES = new String[0];
+    private final Type type; // frame type
+    private final String name; // user name, meaning depends on the type
+    private final String text; // chat line, question or room name
+    private final int number; // approval flag, question number or score
+    private final String[] names; // users list
+    private final long seq; // users list version, or a chat line's or question's receive order in its room
+    private final long time; // a chat line's or question's receive time on the server (see Server.clock())
+
+    /**
+     * Creates a frame, use the static factories
+     *
+     * @param type   - frame type
+     * @param name   - user name
+     * @param text   - text
+     * @param number - number
+     * @param names  - users list
+     * @param seq    - users list version
+     */
+    Frame(Type type, String name, String text, int number, String[] names, long seq) {
+        this(type, name, text, number, names, seq, 0);
+    }
+
+    /**
+     * Creates a frame, use the static factories
+     *
+     * @param type   - frame type
+     * @param name   - user name
+     * @param text   - text
+     * @param number - number
+     * @param names  - users list
+     * @param seq    - users list version or receive order
+     * @param time   - receive time
+     */
+    Frame(Type type, String name, String text, int number, String[] names, long seq, long time) {
+        this.type = type;
+        this.name = name == null ? "" : name;
+        this.text = text == null ? "" : text;
+        this.number = number;
+        this.names = names == null ? NO_NAMES : names;
+        this.seq = seq;
+        this.time = time;
+    }
+
+    /**
+     * Creates a login request
+     *
+     * @param name - the requested username
+     * @return - the frame
+     */
+    public static Frame login(String name) {
+        return new Frame(Type.LOGIN, name, null, 0, null, 0);
+    }
+
+    /**
+     * Creates a login answer
+     *
+     * @param approved - true if the username was approved
+     * @return - the frame
+     */
+    public static Frame loginAck(boolean approved) {
+        return new Frame(Type.LOGIN_ACK, null, null, approved ? 1 : 0, null, 0);
+    }
+
+    /**
+     * Creates a chat line
+     *
+     * @param sender - the sender, null when sent by a client
+     * @param text   - the line
+     * @return - the frame
+     */
+    public static Frame chat(String sender, String text) {
+        return new Frame(Type.CHAT, sender, text, 0, null, 0);
+    }
+
+    /**
+     * Creates a chat line as relayed by the server
+     *
+     * @param sender - the sender
+     * @param text   - the line
+     * @param seq    - its receive order in the room
+     * @param time   - its receive time
+     * @return - the frame
+     */
+    public static Frame chat(String sender, String text, long seq, long time) {
+        return new Frame(Type.CHAT, sender, text, 0, null, seq, time);
+    }
+
+    /**
+     * Creates a join notice
+     *
+     * @param name - the user who joined
+     * @param seq  - users list version after the join
+     * @return - the frame
+     */
+    public static Frame join(String name, long seq) {
+        return new Frame(Type.JOIN, name, null, 0, null, seq);
+    }
+
+    /**
+     * Creates a leave notice
+     *
+     * @param name - the user who left
+     * @param seq  - users list version after the leave
+     * @return - the frame
+     */
+    public static Frame leave(String name, long seq) {
+        return new Frame(Type.LEAVE, name, null, 0, null, seq);
+    }
+
+    /**
+     * Creates a users list
+     *
+     * @param names - the users names
+     * @param seq   - users list version
+     * @return - the frame
+     */
+    public static Frame userList(String[] names, long seq) {
+        return new Frame(Type.USER_LIST, null, null, 0, names, seq);
+    }
+
+    /**
+     * Creates a trivia question
+     *
+     * @param sender   - the sender, null when sent by a client
+     * @param number   - the question number in the game
+     * @param question - the question
+     * @return - the frame
+     */
+    public static Frame question(String sender, int number, String question) {
+        return new Frame(Type.QUESTION, sender, question, number, null, 0);
+    }
+
+    /**
+     * Creates a trivia question as relayed by the server
+     *
+     * @param sender   - the sender
+     * @param number   - the question number in the game
+     * @param question - the question
+     * @param seq      - its receive order in the room
+     * @param time     - its receive time
+     * @return - the frame
+     */
+    public static Frame question(String sender, int number, String question, long seq, long time) {
+        return new Frame(Type.QUESTION, sender, question, number, null, seq, time);
+    }
+
+    /**
+     * Creates a player's score
+     *
+     * @param player - the player
+     * @param score  - the player's score
+     * @return - the frame
+     */
+    public static Frame score(String player, int score) {
+        return new Frame(Type.SCORE, player, null, score, null, 0);
+    }
+
+    /**
+     * Creates a users list resync request
+     *
+     * @return - the frame
+     */
+    public static Frame resync() {
+        return new Frame(Type.RESYNC, null, null, 0, null, 0);
+    }
+
+    /**
+     * Creates a room move request, or the server's answer to it
+     *
+     * @param room - the room name
+     * @return - the frame
+     */
+    public static Frame joinRoom(String room) {
+        return new Frame(Type.JOIN_ROOM, null, room, 0, null, 0);
+    }
+
+    /**
+     * Creates a room leave request
+     *
+     * @return - the frame
+     */
+    public static Frame leaveRoom() {
+        return new Frame(Type.LEAVE_ROOM, null, null, 0, null, 0);
+    }
+
+    /**
+     * Returns a copy of this frame as relayed by the server
+     * stamped with its sender and its receive order and time
+     *
+     * @param sender - the sender
+     * @param seq    - receive order in the room
+     * @param time   - receive time
+     * @return - the stamped frame
+     */
+    public Frame stamped(String sender, long seq, long time) {
+        return new Frame(type, sender, text, number, names, seq, time);
+    }
+
+    /**
+     * Returns the frame's type
+     *
+     * @return - the type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the user name (sender, player, joined or left user)
+     *
+     * @return - the name, empty if the frame has none
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the chat line, the question or the room name
+     *
+     * @return - the text, empty if the frame has none
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the question number or the score
+     *
+     * @return - the number
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * Returns the users list
+     * the array is shared, callers must not change it
+     *
+     * @return - the users list
+     */
+    public String[] getNames() {
+        return names;
+    }
+
+    /**
+     * Returns the users list version of a JOIN, LEAVE or USER_LIST,
+     * or the receive order in its room of a chat line or question relayed by the server
+     *
+     * @return - the version or order
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns a chat line's or question's receive time on the server
+     *
+     * @return - nanoseconds (see Server.clock()), 0 if not relayed by a server
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns true if this is an approving LOGIN_ACK
+     *
+     * @return - true if approved, false otherwise
+     */
+    public boolean isApproved() {
+        return type == Type.LOGIN_ACK && number == 1;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + name + ", " + text + ", " + number + ", " + names.length + " names, seq " + seq + (time == 0 ? "" : ", time " + time) + ")";
+    }
+}
@@ -0,0 +1,97 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameDecoder class
+ * Decodes frames out of a non blocking byte stream, one read at a time
+ * frames that arrive whole are decoded straight from the read buffer,
+ * only a frame split between reads is copied aside until the rest arrives, into a buffer grown as its bytes arrive,
+ * so a length prefix alone never costs a large allocation
+ */
+public class FrameDecoder {
+    private final ByteBuffer lengthField = ByteBuffer.allocate(Protocol.LENGTH_FIELD); // partial length prefix
+    private ByteBuffer body; // partial frame body, null between frames
+    private int bodyLength; // the partial body's length, its buffer may be smaller until the rest arrives
+    private int maxLength = Protocol.MAX_FRAME_LENGTH; // longest frame accepted
+    private ByteBuffer view; // reused window over the read buffer of a frame that arrived whole
+    private ByteBuffer viewOf; // the read buffer the view is over
+
+    /**
+     * Sets the longest frame accepted, such as a lower limit until the peer logs in
+     *
+     * @param maxLength - the longest frame, up to Protocol.MAX_FRAME_LENGTH
+     */
+    public void setMaxLength(int maxLength) {
+        this.maxLength = Math.min(maxLength, Protocol.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Decodes the next frame from the read bytes
+     * call again until it returns null, then read more bytes
+     *
+     * @param in - the read bytes, consumed as they are decoded
+     * @return - the frame, null if more bytes are needed
+     * @throws ProtocolException - malformed frame
+     */
+    public Frame next(ByteBuffer in) throws ProtocolException {
+        ByteBuffer b;
+        while ((b = nextBody(in)) != null) {
+            Frame f = Protocol.decode(b);
+            if (f != null)
+                return f;
+        }
+        return null; // unknown types are skipped
+    }
+
+    /**
+     * Returns the next complete frame's body (everything after the length prefix) from the read bytes
+     * the body is only valid until the next call, it may be a window over the read buffer itself
+     * call again until it returns null, then read more bytes
+     *
+     * @param in - the read bytes, consumed as they are framed
+     * @return - the body, from its position to its limit, null if more bytes are needed
+     * @throws ProtocolException - the length is out of range
+     */
+    public ByteBuffer nextBody(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (body == null) {
+                if (lengthField.position() == 0 && in.remaining() >= Protocol.LENGTH_FIELD) { // whole length in the buffer
+                    int length = in.getInt(in.position());
+                    Protocol.checkLength(length, maxLength);
+                    if (in.remaining() >= Protocol.LENGTH_FIELD + length) { // whole frame in the buffer
+                        int end = in.position() + Protocol.LENGTH_FIELD + length;
+                        if (viewOf != in) { // the loops read into the same buffer every time
+                            view = in.duplicate();
+                            viewOf = in;
+                        }
+                        view.clear();
+                        view.position(in.position() + Protocol.LENGTH_FIELD).limit(end);
+                        in.position(end);
+                        return view;
+                    }
+                }
+                lengthField.put(in.get());
+                if (lengthField.hasRemaining())
+                    continue;
+                int length = lengthField.getInt(0);
+                Protocol.checkLength(length, maxLength);
+                lengthField.clear();
+                body = Protocol.newBody(length);
+                bodyLength = length;
+            } else {
+                if (!body.hasRemaining()) // more of the body arrived than its buffer holds
+                    body = Protocol.grow(body, bodyLength);
+                int n = Math.min(in.remaining(), body.remaining());
+                body.put(body.position(), in, in.position(), n);
+                body.position(body.position() + n);
+                in.position(in.position() + n);
+                if (body.position() < bodyLength)
+                    continue;
+                ByteBuffer b = body.flip();
+                body = null;
+                return b;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * GameEngine class
+ * Hosts trivia games in any number of rooms from one process, a game per room
+ * the games share a few scheduler threads (see TriviaGame and Mailbox),
+ * every room gets its own bot connection, the server keeps a user in one room at a time
+ * every point of every game is added to the engine's scoreboard, kept across games and restarts
+ * the players response times, from the server receiving a question to receiving an answer, are recorded for all the games
+ */
+public class GameEngine {
+    private final String BOT_NAME = "TrivBot"; // bots usernames start with it
+    private final int LOGIN_ATTEMPTS = 5; // names tried for a room's bot
+    private final long RECONNECT_MIN = 500; // a bot's first reconnect delay, milliseconds
+    private final long RECONNECT_MAX = 30000; // a bot's longest reconnect delay, milliseconds
+    private final String host; // server's host
+    private final int port; // server's port
+    private final QuestionBank bank; // the questions of all the games
+    private final Scoreboard scoreboard; // the points of all the games
+    private final ScheduledThreadPoolExecutor scheduler; // runs all the games
+    private final Map<String, TriviaGame> games = new ConcurrentHashMap<>(); // room -> its game
+    private final LatencyHistogram responseLatency = new LatencyHistogram(); // players response times in nanoseconds
+
+    /**
+     * Creates an engine
+     *
+     * @param host       - server's host
+     * @param port       - server's port
+     * @param bank       - the questions
+     * @param scoreboard - the points of all the games
+     * @param threads    - scheduler threads, shared by all the games
+     */
+    public GameEngine(String host, int port, QuestionBank bank, Scoreboard scoreboard, int threads) {
+        this.host = host;
+        this.port = port;
+        this.bank = bank;
+        this.scoreboard = scoreboard;
+        final AtomicInteger count = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "games-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true); // answered questions cancel their timers
+    }
+
+    /**
+     * Returns the scheduler shared by the games
+     *
+     * @return - the scheduler
+     */
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns the points of all the games
+     *
+     * @return - the scoreboard
+     */
+    public Scoreboard scoreboard() {
+        return scoreboard;
+    }
+
+    /**
+     * Returns the players response times of all the games
+     *
+     * @return - the response times in nanoseconds
+     */
+    public LatencyHistogram responseLatency() {
+        return responseLatency;
+    }
+
+    /**
+     * Starts hosting games in a room
+     * connects a bot for the room, its chat lines are the players answers
+     *
+     * @param room - the room name
+     * @return - the room's game, null if the bot couldn't connect
+     */
+    public TriviaGame host(final String room) {
+        TriviaGame existing = games.get(room);
+        if (existing != null)
+            return existing;
+        final Client connection = new Client();
+        if (!connection.connect(host, port, BOT_NAME + "-" + room, LOGIN_ATTEMPTS)) {
+            console(room + " - Could not connect to server");
+            return null;
+        }
+        if (!room.equals(Protocol.LOBBY))
+            connection.joinRoom(room);
+        final TriviaGame game = new TriviaGame(room, connection, bank, this);
+        if (games.putIfAbsent(room, game) != null) { // hosted meanwhile
+            connection.closeConnection();
+            return games.get(room);
+        }
+        connection.setReconnect(RECONNECT_MIN, RECONNECT_MAX); // the bot outlives a server restart
+        connection.listen(new Client.Listener() { // the players answers, on the clients' shared loop
+            @Override
+            public void onChat(Frame frame) {
+                if (!connection.getName().equals(frame.getName()))
+                    game.answer(frame.getName(), frame.getText(), frame.getSeq(), frame.getTime());
+            }
+
+            @Override
+            public void onQuestion(Frame frame) {
+                if (connection.getName().equals(frame.getName())) // the server's stamp of the question
+                    game.asked(frame.getNumber(), frame.getTime());
+            }
+
+            @Override
+            public void onReconnected() {
+                console(room + " - Reconnected as " + connection.getName());
+            }
+
+            @Override
+            public void onClosed(Throwable error) {
+                games.remove(room, game);
+                game.stop();
+                console(room + " - Disconnected from host");
+            }
+        });
+        console(room + " - Hosting as " + connection.getName());
+        return game;
+    }
+
+    /**
+     * Stops hosting a room, its game ends and its bot disconnects
+     *
+     * @param room - the room name
+     */
+    public void leave(String room) {
+        TriviaGame game = games.remove(room);
+        if (game == null)
+            return;
+        game.stop();
+        game.getConnection().closeConnection();
+    }
+
+    /**
+     * Returns a room's game
+     *
+     * @param room - the room name
+     * @return - the game, null if the room isn't hosted
+     */
+    public TriviaGame game(String room) {
+        return games.get(room);
+    }
+
+    /**
+     * Returns the hosted rooms
+     *
+     * @return - the rooms names, sorted
+     */
+    public Set<String> rooms() {
+        return new TreeSet<>(games.keySet());
+    }
+
+    /**
+     * Stops all the games and disconnects their bots
+     */
+    public void shutdown() {
+        for (String room : rooms()) {
+            leave(room);
+        }
+        scheduler.shutdown();
+        scoreboard.close();
+    }
+
+    /**
+     * Prompt text to the engine's console
+     *
+     * @param txt - the txt
+     */
+    public void console(String txt) {
+        System.out.println(Server.TIME.format(LocalTime.now()) + txt);
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * HeapQuestionBank class
+ * A question bank loaded from text files into a few flat arrays
+ * every string is kept as UTF-8 bytes in one shared array, so a question costs its text's bytes
+ * and about 16 bytes of index instead of several String objects,
+ * short answers (the ones that repeat, like numbers and names) are stored once for the whole bank
+ * files:
+ * NAME.tsv - one question per line: category TAB difficulty TAB question TAB answer|other answer...
+ * difficulty is 1 (easy) to 5 (hard), 0 if not rated, empty lines and lines starting with # are skipped
+ * questionsNAME.txt - a question per line, its answers on the same line of answersNAME.txt,
+ * the bot's original format, the questions are in the "general" category
+ * a directory loads all of its bank files, in name order
+ */
+public class HeapQuestionBank implements QuestionBank {
+    public static final String GENERAL = "general"; // category of the questions/answers pairs
+    private static final int SHARED_ANSWER = 24; // answers up to this length are stored once
+    private byte[] data = new byte[1 << 16]; // strings, each a 2 bytes length and its UTF-8 bytes
+    private int dataSize; // bytes of data used
+    private int[] text = new int[1024]; // question -> offset of its text in data
+    private int[] answersStart = new int[1025]; // question -> its first answer in answers, one more for the end
+    private int[] answers = new int[1024]; // offsets of the answers in data
+    private int answersSize; // answers used
+    private short[] category = new short[1024]; // question -> category id
+    private byte[] difficulty = new byte[1024]; // question -> difficulty
+    private int size; // number of questions
+    private final List<String> categories = new ArrayList<>(); // category id -> name
+    private final Map<String, Integer> categoryIds = new HashMap<>(); // category name -> id
+    private Map<String, Integer> sharedAnswers = new HashMap<>(); // short answer -> its offset, while loading
+
+    private HeapQuestionBank() {
+    }
+
+    /**
+     * Loads a bank from files and directories
+     *
+     * @param paths - bank files and directories of bank files
+     * @return - the bank
+     * @throws IOException - couldn't read a file or a line is malformed
+     */
+    public static HeapQuestionBank load(String... paths) throws IOException {
+        HeapQuestionBank bank = new HeapQuestionBank();
+        for (String p : paths) {
+            Path path = Paths.get(p);
+            if (Files.isDirectory(path)) {
+                List<Path> files;
+                try (Stream<Path> list = Files.list(path)) {
+                    files = list.sorted().collect(Collectors.toList());
+                }
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    if (name.endsWith(".tsv") || isQuestionsFile(name))
+                        bank.addFile(f);
+                }
+            } else {
+                bank.addFile(path);
+            }
+        }
+        bank.trim();
+        return bank;
+    }
+
+    /**
+     * Checks if a file is the questions half of a questions/answers pair
+     *
+     * @param name - the file's name
+     * @return - true for questionsNAME.txt
+     */
+    private static boolean isQuestionsFile(String name) {
+        return name.startsWith("questions") && name.endsWith(".txt");
+    }
+
+    /**
+     * Adds a bank file's questions
+     *
+     * @param file - the file
+     * @throws IOException - couldn't read the file or a line is malformed
+     */
+    private void addFile(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        if (isQuestionsFile(name)) {
+            addPair(file, file.resolveSibling("answers" + name.substring("questions".length())));
+            return;
+        }
+        try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = br.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4)
+                    throw new IOException(file + ":" + number + " - expected category, difficulty, question and answers");
+                int level;
+                try {
+                    level = Integer.parseInt(fields[1].trim());
+                } catch (NumberFormatException e) {
+                    level = -1;
+                }
+                if (level < 0 || level > 5)
+                    throw new IOException(file + ":" + number + " - difficulty must be 0 to 5");
+                add(file, number, fields[0].trim(), level, fields[2], fields[3]);
+            }
+        }
+    }
+
+    /**
+     * Adds the questions of a questions/answers pair, matched by line
+     *
+     * @param questionsFile - a question per line
+     * @param answersFile   - the answers, on the same lines
+     * @throws IOException - couldn't read the files or they have different lengths
+     */
+    private void addPair(Path questionsFile, Path answersFile) throws IOException {
+        try (BufferedReader q = Files.newBufferedReader(questionsFile, StandardCharsets.UTF_8);
+             BufferedReader a = Files.newBufferedReader(answersFile, StandardCharsets.UTF_8)) {
+            String question;
+            String answer;
+            int number = 0;
+            while (true) {
+                question = q.readLine();
+                answer = a.readLine();
+                number++;
+                if (question == null || answer == null)
+                    break;
+                if (question.trim().isEmpty() && answer.trim().isEmpty())
+                    continue;
+                add(questionsFile, number, GENERAL, 0, question, answer);
+            }
+            if (question != null || answer != null)
+                throw new IOException(questionsFile + " and " + answersFile + " have a different number of lines");
+        }
+    }
+
+    /**
+     * Adds a question
+     *
+     * @param file       - the file it came from, for errors
+     * @param number     - its line number, for errors
+     * @param cat        - category name
+     * @param level      - difficulty
+     * @param question   - the question
+     * @param answerList - its answers, separated by |
+     * @throws IOException - the question has no answers or a string is too long
+     */
+    private void add(Path file, int number, String cat, int level, String question, String answerList) throws IOException {
+        List<String> accepted = new ArrayList<>();
+        for (String s : answerList.split("\\|")) {
+            if (!s.trim().isEmpty())
+                accepted.add(s.trim());
+        }
+        if (question.trim().isEmpty() || accepted.isEmpty())
+            throw new IOException(file + ":" + number + " - a question needs a text and an answer");
+        if (size == text.length)
+            grow();
+        Integer id = categoryIds.get(cat);
+        if (id == null) {
+            if (categories.size() > Short.MAX_VALUE)
+                throw new IOException(file + ":" + number + " - too many categories");
+            id = categories.size();
+            categories.add(cat);
+            categoryIds.put(cat, id);
+        }
+        try {
+            text[size] = put(question);
+            for (String s : accepted) {
+                if (answersSize == answers.length)
+                    answers = Arrays.copyOf(answers, answers.length * 2);
+                Integer shared = s.length() <= SHARED_ANSWER ? sharedAnswers.get(s) : null;
+                if (shared == null) {
+                    shared = put(s);
+                    if (s.length() <= SHARED_ANSWER)
+                        sharedAnswers.put(s, shared);
+                }
+                answers[answersSize++] = shared;
+            }
+        } catch (IllegalArgumentException e) { // longer than a string may be
+            throw new IOException(file + ":" + number + " - " + e.getMessage());
+        }
+        category[size] = id.shortValue();
+        difficulty[size] = (byte) level;
+        answersStart[++size] = answersSize;
+    }
+
+    /**
+     * Doubles the questions arrays
+     *
+     * @throws IOException - the bank is too large to be held in memory
+     */
+    private void grow() throws IOException {
+        int capacity = text.length * 2;
+        if (capacity < 0)
+            throw new IOException("Too many questions to load, use a bank file");
+        text = Arrays.copyOf(text, capacity);
+        answersStart = Arrays.copyOf(answersStart, capacity + 1);
+        category = Arrays.copyOf(category, capacity);
+        difficulty = Arrays.copyOf(difficulty, capacity);
+    }
+
+    /**
+     * Appends a string to the data
+     *
+     * @param s - the string
+     * @return - its offset
+     * @throws IOException - the data is too large to be held in memory
+     */
+    private int put(String s) throws IOException {
+        byte[] bytes = Protocol.utf8(s);
+        int needed = dataSize + 2 + bytes.length;
+        if (needed < 0)
+            throw new IOException("Too many questions to load, use a bank file");
+        if (needed > data.length)
+            data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) data.length * 2, needed)));
+        int offset = dataSize;
+        data[offset] = (byte) (bytes.length >>> 8);
+        data[offset + 1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, data, offset + 2, bytes.length);
+        dataSize = needed;
+        return offset;
+    }
+
+    /**
+     * Decodes a string
+     *
+     * @param offset - its offset in the data
+     * @return - the string
+     */
+    private String string(int offset) {
+        int length = (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+        return new String(data, offset + 2, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drops the spare room of the arrays once loaded
+     */
+    private void trim() {
+        data = Arrays.copyOf(data, dataSize);
+        text = Arrays.copyOf(text, size);
+        answersStart = Arrays.copyOf(answersStart, size + 1);
+        answers = Arrays.copyOf(answers, answersSize);
+        category = Arrays.copyOf(category, size);
+        difficulty = Arrays.copyOf(difficulty, size);
+        sharedAnswers = null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Question get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("question " + index + " of " + size);
+        String[] accepted = new String[answersStart[index + 1] - answersStart[index]];
+        for (int i = 0; i < accepted.length; i++) {
+            accepted[i] = string(answers[answersStart[index] + i]);
+        }
+        return new Question(string(text[index]), category(index), difficulty(index), accepted);
+    }
+
+    @Override
+    public String category(int index) {
+        return categories.get(category[index]);
+    }
+
+    @Override
+    public int difficulty(int index) {
+        return difficulty[index];
+    }
+
+    @Override
+    public List<String> categories() {
+        return Collections.unmodifiableList(categories);
+    }
+}
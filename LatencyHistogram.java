@@ -0,0 +1,127 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram class
+ * Counts latencies into log-linear buckets, safe to record into from many threads without locking
+ * every power of two is split into 32 buckets, so a percentile is within about 3% of the true value,
+ * the whole long range fits in under 2000 counters and recording never allocates
+ * the counters are striped by thread, so threads recording at once rarely touch the same cache line
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5; // every power of two has 2^SUB_BITS buckets
+    private static final int SUB = 1 << SUB_BITS; // buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB; // buckets of the whole long range
+    private static final int STRIPES = stripes(); // counters copies, a power of two
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS); // stripe * BUCKETS + bucket -> values counted
+    private final LongAdder count = new LongAdder(); // values counted
+    private final LongAdder sum = new LongAdder(); // sum of the values
+    private final AtomicLong max = new AtomicLong(); // largest value, rarely written
+
+    /**
+     * Returns the number of stripes, the processors count rounded up to a power of two
+     *
+     * @return - the number of stripes
+     */
+    private static int stripes() {
+        int cpus = Math.min(16, Runtime.getRuntime().availableProcessors()); // 16 copies at most, 240KB
+        return cpus <= 1 ? 1 : Integer.highestOneBit(cpus - 1) << 1;
+    }
+
+    /**
+     * Counts a value
+     *
+     * @param value - the value, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucket(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // another thread raised the max, checking again
+        }
+    }
+
+    /**
+     * Returns the number of values counted
+     *
+     * @return - the count
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the mean of the values counted
+     *
+     * @return - the mean, 0 if nothing was counted
+     */
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the largest value counted
+     *
+     * @return - the max, 0 if nothing was counted
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns a percentile of the values counted
+     * the answer is the highest value of the bucket holding the percentile
+     *
+     * @param fraction - the percentile as a fraction, 0.99 for p99
+     * @return - the value, 0 if nothing was counted
+     */
+    public long percentile(double fraction) {
+        long[] buckets = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i);
+            buckets[i % BUCKETS] += c;
+            n += c;
+        }
+        if (n == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= target)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the bucket of a value
+     *
+     * @param value - the value, not negative
+     * @return - the bucket's index
+     */
+    private static int bucket(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * SUB + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the highest value of a bucket
+     *
+     * @param bucket - the bucket's index
+     * @return - the value
+     */
+    private static long highest(int bucket) {
+        int shift = bucket < 2 * SUB ? 0 : bucket / SUB - 1;
+        long top = bucket - (long) shift * SUB;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,409 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator class
+ * A headless load generator, simulates thousands of chat users and trivia players against a local server
+ * a few worker threads drive all the simulated users over non blocking channels,
+ * every user logs in (trying another name when it isn't approved), joins a room,
+ * chats at a random (Poisson) rate and answers some of the trivia questions, right or wrong
+ * every chat line carries its send time, so every user receiving it measures the broadcast's latency
+ * prompts throughput and p50/p99/p999 latency every second, and totals at the end
+ * usage: LoadGenerator [key=value...]
+ * host=localhost port=7777 clients=500 seconds=30 rate=0.2 (chats per user per second) room=lobby threads=2
+ * answer=0.2 (share of users answering a question) correct=0.3 (share of the answers that are right)
+ * bank=PATH[,PATH...] (the bot's question bank, to know the right answers) server=thread|nio (starts a local server)
+ */
+public class LoadGenerator {
+    private static final String STAMP = "@"; // chat lines start with @<send time in nanoseconds>
+    private final String HOST; // server's host
+    private final int PORT; // server's port
+    private final int CLIENTS; // number of simulated users
+    private final int SECONDS; // run length
+    private final double RATE; // chats per user per second
+    private final String ROOM; // the room the users join
+    private final int THREADS; // worker threads
+    private final double ANSWER; // share of users answering a question
+    private final double CORRECT; // share of the answers that are right
+    private final int LOGIN_ATTEMPTS = 5; // names tried by a user before giving up
+    private final Map<String, String> answers = new HashMap<>(); // question -> right answer
+    private final AtomicInteger loggedIn = new AtomicInteger(); // users logged in
+    private final AtomicInteger failed = new AtomicInteger(); // users that couldn't connect or log in
+    private final AtomicInteger retried = new AtomicInteger(); // logins retried with another name
+    private final AtomicLong sent = new AtomicLong(); // chat lines sent
+    private final AtomicLong answered = new AtomicLong(); // trivia answers sent
+    private final AtomicLong received = new AtomicLong(); // stamped chat lines received
+    private final LatencyHistogram total = new LatencyHistogram(); // latency of the whole run
+    private volatile LatencyHistogram interval = new LatencyHistogram(); // latency of the current second
+    private volatile boolean running = true; // run flag
+
+    /**
+     * A simulated user
+     */
+    private class User {
+        private final String base; // wanted username
+        private final SocketChannel channel; // connection
+        private final FrameDecoder decoder = new FrameDecoder(); // decodes the server's frames
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // encoded frames waiting to be written
+        private SelectionKey key; // key in the worker's selector
+        private int attempt; // login attempts so far
+        private boolean ready; // logged in
+        private long nextChat; // time of the next chat line, in nanoseconds
+        private String answer; // answer to send, null if none
+        private long answerAt; // time to send the answer
+
+        User(String base, SocketChannel channel) {
+            this.base = base;
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a frame and writes as much as the channel takes
+         *
+         * @param frame - the frame
+         * @throws IOException - writing failed
+         */
+        void send(Frame frame) throws IOException {
+            out.add(ByteBuffer.wrap(Protocol.encode(frame)));
+            flush();
+        }
+
+        /**
+         * Writes the queued frames until done or the channel is full
+         *
+         * @throws IOException - writing failed
+         */
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer b = out.peek();
+                channel.write(b);
+                if (b.hasRemaining()) { // channel is full, waiting for OP_WRITE
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Sends a login with the next name to try
+         *
+         * @throws IOException - writing failed
+         */
+        void login() throws IOException {
+            send(Frame.login(attempt == 0 ? base : base + "-" + attempt));
+            attempt++;
+        }
+    }
+
+    /**
+     * Creates a load generator
+     *
+     * @param options - key=value options, see the class comment
+     * @throws IOException - couldn't load the question bank
+     */
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        HOST = option(options, "host", "localhost");
+        PORT = Integer.parseInt(option(options, "port", "7777"));
+        CLIENTS = Integer.parseInt(option(options, "clients", "500"));
+        SECONDS = Integer.parseInt(option(options, "seconds", "30"));
+        RATE = Double.parseDouble(option(options, "rate", "0.2"));
+        ROOM = option(options, "room", Protocol.LOBBY);
+        THREADS = Integer.parseInt(option(options, "threads", "2"));
+        ANSWER = Double.parseDouble(option(options, "answer", "0.2"));
+        CORRECT = Double.parseDouble(option(options, "correct", "0.3"));
+        if (options.containsKey("bank")) {
+            QuestionBank bank = QuestionBank.open(options.get("bank").split(","));
+            for (int i = 0; i < bank.size(); i++) {
+                Question q = bank.get(i);
+                answers.put(q.getText(), q.getAnswer());
+            }
+        }
+    }
+
+    /**
+     * Returns an option's value
+     *
+     * @param options - the options
+     * @param key     - the option
+     * @param value   - default value
+     * @return - the value
+     */
+    private static String option(Map<String, String> options, String key, String value) {
+        String v = options.get(key);
+        return v == null ? value : v;
+    }
+
+    /**
+     * Runs the load and prompts the results
+     *
+     * @throws Exception - a worker couldn't start
+     */
+    public void run() throws Exception {
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < THREADS; w++) {
+            final int first = w;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work(first);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "load-" + w);
+            t.start();
+            workers.add(t);
+        }
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int s = 1; s <= SECONDS; s++) {
+            Thread.sleep(Math.max(0, start + s * 1000000000L - System.nanoTime()) / 1000000);
+            LatencyHistogram h = interval;
+            interval = new LatencyHistogram();
+            long sentNow = sent.get();
+            long receivedNow = received.get();
+            System.out.printf("%3ds users=%d failed=%d sent=%d/s received=%d/s latency p50=%s p99=%s p999=%s%n",
+                    s, loggedIn.get(), failed.get(), sentNow - lastSent, receivedNow - lastReceived,
+                    millis(h.percentile(0.5)), millis(h.percentile(0.99)), millis(h.percentile(0.999)));
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+        }
+        running = false;
+        for (Thread t : workers) {
+            t.join();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("total: users=%d failed=%d retried=%d sent=%d (%.0f/s) answers=%d received=%d (%.0f/s)%n",
+                loggedIn.get(), failed.get(), retried.get(), sent.get(), sent.get() / secs, answered.get(), received.get(), received.get() / secs);
+        System.out.printf("latency: p50=%s p99=%s p999=%s max=%s mean=%s%n",
+                millis(total.percentile(0.5)), millis(total.percentile(0.99)), millis(total.percentile(0.999)),
+                millis(total.max()), millis((long) total.mean()));
+    }
+
+    /**
+     * Formats nanoseconds as milliseconds
+     *
+     * @param nanos - the time
+     * @return - the formatted time
+     */
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    /**
+     * A worker, drives every THREADS-th user from its own selector
+     *
+     * @param first - the worker's first user
+     * @throws IOException - couldn't open the selector
+     */
+    private void work(int first) throws IOException {
+        Random random = new Random(first);
+        List<User> users = new ArrayList<>();
+        try (Selector selector = Selector.open()) {
+            for (int i = first; i < CLIENTS; i += THREADS) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(new InetSocketAddress(HOST, PORT));
+                User u = new User("load" + i, channel);
+                u.key = channel.register(selector, SelectionKey.OP_CONNECT, u);
+                users.add(u);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (running) {
+                selector.select(1);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    User u = (User) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            u.channel.finishConnect();
+                            u.login();
+                        } else {
+                            if (key.isWritable())
+                                u.flush();
+                            if (key.isReadable())
+                                read(u, buffer, random);
+                        }
+                    } catch (IOException e) {
+                        drop(u);
+                    }
+                }
+                long now = System.nanoTime();
+                for (User u : users) {
+                    try {
+                        act(u, now, random);
+                    } catch (IOException e) {
+                        drop(u);
+                    }
+                }
+            }
+            for (User u : users) {
+                u.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads and handles a user's frames
+     *
+     * @param u      - the user
+     * @param buffer - the worker's read buffer
+     * @param random - the worker's random numbers
+     * @throws IOException - reading failed or the server closed the connection
+     */
+    private void read(User u, ByteBuffer buffer, Random random) throws IOException {
+        buffer.clear();
+        if (u.channel.read(buffer) < 0)
+            throw new IOException("closed by server");
+        buffer.flip();
+        Frame f;
+        while ((f = u.decoder.next(buffer)) != null) {
+            switch (f.getType()) {
+                case LOGIN_ACK:
+                    if (f.isApproved()) {
+                        u.ready = true;
+                        loggedIn.incrementAndGet();
+                        if (!ROOM.equals(Protocol.LOBBY))
+                            u.send(Frame.joinRoom(ROOM));
+                        u.nextChat = System.nanoTime() + nextGap(random);
+                    } else if (u.attempt < LOGIN_ATTEMPTS) { // NOT APPROVED, trying another name
+                        retried.incrementAndGet();
+                        u.login();
+                    } else {
+                        throw new IOException(u.base + " was not approved");
+                    }
+                    break;
+                case CHAT:
+                    long sent = stamp(f.getText());
+                    if (sent != Long.MIN_VALUE) {
+                        long latency = System.nanoTime() - sent;
+                        total.record(latency);
+                        interval.record(latency);
+                        received.incrementAndGet();
+                    }
+                    break;
+                case QUESTION:
+                    if (random.nextDouble() < ANSWER) {
+                        String right = answers.get(f.getText());
+                        u.answer = right != null && random.nextDouble() < CORRECT ? right : "wrong guess " + random.nextInt(1000);
+                        u.answerAt = System.nanoTime() + random.nextInt(5000) * 1000000L; // thinking for up to 5 seconds
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads the send time of a generated chat line
+     *
+     * @param text - a chat line
+     * @return - its send time (System.nanoTime()), Long.MIN_VALUE if it isn't a generated line (a real user's "@bob hi")
+     */
+    private static long stamp(String text) {
+        if (!text.startsWith(STAMP))
+            return Long.MIN_VALUE;
+        int end = text.indexOf(' ');
+        try {
+            return Long.parseLong(text.substring(STAMP.length(), end < 0 ? text.length() : end));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Sends a user's due chat line or answer
+     *
+     * @param u      - the user
+     * @param now    - current time in nanoseconds
+     * @param random - the worker's random numbers
+     * @throws IOException - writing failed
+     */
+    private void act(User u, long now, Random random) throws IOException {
+        if (!u.ready)
+            return;
+        if (RATE > 0 && now >= u.nextChat) {
+            u.send(Frame.chat(null, STAMP + System.nanoTime() + " load line from " + u.base));
+            sent.incrementAndGet();
+            u.nextChat = now + nextGap(random);
+        }
+        if (u.answer != null && now >= u.answerAt) {
+            u.send(Frame.chat(null, u.answer));
+            answered.incrementAndGet();
+            u.answer = null;
+        }
+    }
+
+    /**
+     * Returns a random time to the next chat line, so every user chats as a Poisson process
+     *
+     * @param random - the worker's random numbers
+     * @return - the time in nanoseconds
+     */
+    private long nextGap(Random random) {
+        return (long) (-Math.log(1 - random.nextDouble()) / RATE * 1e9);
+    }
+
+    /**
+     * Drops a user after an error
+     *
+     * @param u - the user
+     */
+    private void drop(User u) {
+        if (!u.channel.isOpen())
+            return;
+        failed.incrementAndGet();
+        if (u.ready)
+            loggedIn.decrementAndGet();
+        u.ready = false;
+        try {
+            u.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0)
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        if (options.containsKey("server")) { // a local server for the run
+            final Server server = new Server(Integer.parseInt(option(options, "port", "7777")),
+                    Server.Mode.valueOf(options.get("server").toUpperCase()), Integer.MAX_VALUE, Runtime.getRuntime().availableProcessors());
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.run();
+                }
+            }, "server");
+            t.setDaemon(true);
+            t.start();
+            if (!server.awaitBound(5000))
+                throw new IllegalStateException("the server didn't start");
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * LoopbackTransport class
+ * An in process cluster transport, for running a whole cluster on one machine
+ * the nodes of a Hub hand batches to each other directly,
+ * every node delivers its batches on its own thread, so delivery is as asynchronous as over a network
+ */
+public class LoopbackTransport implements ClusterTransport {
+    /**
+     * The nodes of one in process cluster
+     * all the nodes must join before any of them starts
+     */
+    public static class Hub {
+        private final ConcurrentSkipListMap<String, LoopbackTransport> nodes = new ConcurrentSkipListMap<>(); // name -> node
+
+        /**
+         * Adds a node to the cluster
+         *
+         * @param node - the node's name, unique in the hub
+         * @return - the node's transport
+         */
+        public LoopbackTransport join(String node) {
+            LoopbackTransport t = new LoopbackTransport(this, node);
+            if (nodes.putIfAbsent(node, t) != null)
+                throw new IllegalArgumentException("Node already exists: " + node);
+            return t;
+        }
+    }
+
+    private final Hub hub; // the cluster
+    private final String NODE; // this node's name
+    private final ExecutorService delivery; // delivers the batches sent to this node, in order
+    private volatile Receiver receiver; // null until started
+
+    /**
+     * Creates a node, use Hub.join()
+     *
+     * @param hub  - the cluster
+     * @param node - the node's name
+     */
+    private LoopbackTransport(Hub hub, final String node) {
+        this.hub = hub;
+        NODE = node;
+        delivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "loopback-" + node);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public String localNode() {
+        return NODE;
+    }
+
+    @Override
+    public List<String> nodes() {
+        return new ArrayList<>(hub.nodes.keySet()); // sorted by name
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(String node, byte[] batch) {
+        LoopbackTransport t = hub.nodes.get(node);
+        if (t != null)
+            t.deliver(NODE, batch);
+    }
+
+    /**
+     * Queues a batch for delivery to this node
+     * batches that arrive before the node started are dropped, like on a closed port
+     *
+     * @param from  - the sending node
+     * @param batch - the batch
+     */
+    private void deliver(final String from, final byte[] batch) {
+        try {
+            delivery.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Receiver r = receiver;
+                    if (r != null)
+                        r.receive(from, batch);
+                }
+            });
+        } catch (RejectedExecutionException ignored) { // node closed
+        }
+    }
+
+    @Override
+    public void close() {
+        receiver = null;
+        delivery.shutdown();
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Mailbox class
+ * Runs an owner's tasks one at a time and in order, on an executor shared with other mailboxes
+ * whatever the tasks touch is only touched by one thread at a time, so it needs no locks,
+ * and an owner with nothing to do holds no thread
+ * a mailbox gives its thread back after BATCH tasks, so a busy owner can't starve the others
+ */
+public class Mailbox implements Executor {
+    private static final int BATCH = 64; // tasks run before giving the thread back
+    private final Executor executor; // the shared threads
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // tasks waiting to run
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // true while a drain is queued or running
+    private final Runnable drain = new Runnable() { // runs the waiting tasks
+        @Override
+        public void run() {
+            Runnable task;
+            for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) { // one bad task mustn't stop the owner
+                    e.printStackTrace();
+                }
+            }
+            scheduled.set(false);
+            if (!tasks.isEmpty())
+                schedule();
+        }
+    };
+
+    /**
+     * Creates a mailbox
+     *
+     * @param executor - the shared threads
+     */
+    public Mailbox(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a task, it runs after the tasks queued before it
+     *
+     * @param task - the task
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    /**
+     * Hands the mailbox to the executor unless it already has it
+     */
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) { // shutting down, the tasks are dropped
+            tasks.clear();
+        }
+    }
+}
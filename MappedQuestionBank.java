@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MappedQuestionBank class
+ * A question bank read straight from a memory mapped bank file (.qbank)
+ * opening it reads only the header and the categories, a question is decoded when it is picked,
+ * so opening is instant and the heap used doesn't depend on the bank's size
+ * only absolute reads are used, so any number of threads may read it at once
+ * the file, big endian, strings are an unsigned short length followed by UTF-8 bytes:
+ * header - int magic "QBNK", int version, int questions count, int categories count
+ * categories - a string each
+ * index - INDEX_ENTRY bytes per question: long offset of its record in the data,
+ * unsigned short category, unsigned byte difficulty, byte unused
+ * data - a record per question: the question string, a byte answers count and the answers strings,
+ * no record crosses a SEGMENT boundary, so the data is mapped in segments
+ * files are written by QuestionBankConverter
+ */
+public class MappedQuestionBank implements QuestionBank {
+    static final int MAGIC = 0x51424E4B; // "QBNK"
+    static final int VERSION = 1; // current file version
+    static final int HEADER = 16; // header bytes
+    static final int INDEX_ENTRY = 12; // index bytes per question
+    static final long SEGMENT = 1L << 30; // data bytes per mapping
+    static final int MAX_CATEGORIES = 0x10000; // category ids are unsigned shorts
+    private final int size; // number of questions
+    private final List<String> categories; // category id -> name
+    private final MappedByteBuffer index; // the index
+    private final MappedByteBuffer[] data; // the data, a mapping per segment
+
+    /**
+     * Maps a bank file
+     *
+     * @param file - the file
+     * @throws IOException - couldn't map the file or it isn't a bank file
+     */
+    public MappedQuestionBank(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = ch.size();
+            if (length < HEADER)
+                throw new IOException(file + " is not a bank file");
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            ch.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException(file + " is not a bank file");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException(file + " has an unsupported version " + version);
+            size = header.getInt();
+            int count = header.getInt();
+            if (count < 0 || count > MAX_CATEGORIES)
+                throw new IOException(file + " is truncated or corrupt");
+            long indexStart = HEADER;
+            ByteBuffer names = ch.map(FileChannel.MapMode.READ_ONLY, HEADER, Math.min(Math.min(length - HEADER, (long) count * (2 + Protocol.MAX_STRING_LENGTH)), Integer.MAX_VALUE));
+            List<String> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[names.getShort() & 0xFFFF];
+                names.get(name);
+                list.add(new String(name, StandardCharsets.UTF_8));
+            }
+            categories = Collections.unmodifiableList(list);
+            indexStart += names.position();
+            long dataStart = indexStart + (long) size * INDEX_ENTRY;
+            if (size < 0 || dataStart > length || (long) size * INDEX_ENTRY > Integer.MAX_VALUE)
+                throw new IOException(file + " is truncated or corrupt");
+            index = ch.map(FileChannel.MapMode.READ_ONLY, indexStart, (long) size * INDEX_ENTRY);
+            data = new MappedByteBuffer[(int) ((length - dataStart + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < data.length; i++) {
+                long start = dataStart + i * SEGMENT;
+                data[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, length - start));
+            }
+        } catch (RuntimeException e) { // a count or a string runs past the end of the file
+            throw new IOException(file + " is truncated or corrupt: " + e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Question get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("question " + index + " of " + size);
+        long offset = this.index.getLong(index * INDEX_ENTRY);
+        ByteBuffer segment = data[(int) (offset / SEGMENT)];
+        int p = (int) (offset % SEGMENT);
+        int length = segment.getShort(p) & 0xFFFF;
+        String text = string(segment, p);
+        p += 2 + length;
+        String[] answers = new String[segment.get(p++) & 0xFF];
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = string(segment, p);
+            p += 2 + (segment.getShort(p) & 0xFFFF);
+        }
+        return new Question(text, category(index), difficulty(index), answers);
+    }
+
+    /**
+     * Decodes a string
+     *
+     * @param segment - the data segment
+     * @param p       - the string's position in the segment
+     * @return - the string
+     */
+    private static String string(ByteBuffer segment, int p) {
+        byte[] bytes = new byte[segment.getShort(p) & 0xFFFF];
+        segment.get(p + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String category(int index) {
+        return categories.get(this.index.getShort(index * INDEX_ENTRY + 8) & 0xFFFF);
+    }
+
+    @Override
+    public int difficulty(int index) {
+        return this.index.get(index * INDEX_ENTRY + 10) & 0xFF;
+    }
+
+    @Override
+    public List<String> categories() {
+        return categories;
+    }
+}
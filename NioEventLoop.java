@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioEventLoop class
+ * A single I/O thread of the server's NIO mode
+ * owns a selector and serves every connection registered to it,
+ * reads and writes are non blocking so one thread can hold many idle users
+ * a flush may be delayed to coalesce writes (see Server.setWriteCoalescing), the loop's select waits until it's due
+ * a failure serving one connection closes that connection only, the loop and its other connections go on
+ */
+public class NioEventLoop extends Thread {
+    private final int READ_BUFFER_SIZE = 64 * 1024; // size of the loop's read buffer
+    private final Server server; // server
+    private final Selector selector; // the loop's selector
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // shared by all the loop's connections
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>(); // accepted channels waiting for registration
+    private final Queue<NioUserManager> writeRequests = new ConcurrentLinkedQueue<>(); // connections with pending output
+    private final Queue<NioUserManager> delayedWrites = new ConcurrentLinkedQueue<>(); // connections flushing later, about in due order
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // work handed to the loop by other threads
+    private volatile boolean running = true; // loop running flag
+    private NioUserManager reading; // the connection whose frames are being relayed, used by the loop only
+
+    /**
+     * Creates a new event loop
+     *
+     * @param server - the server
+     * @param id     - the loop's number, used for the thread's name
+     * @throws IOException - couldn't open a selector
+     */
+    public NioEventLoop(Server server, int id) throws IOException {
+        super("nio-loop-" + id);
+        this.server = server;
+        selector = Selector.open();
+    }
+
+    /**
+     * Hands a new accepted channel to the loop
+     *
+     * @param channel - the accepted channel
+     */
+    public void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to flush a connection's pending output
+     *
+     * @param user - the connection
+     */
+    void requestWrite(NioUserManager user) {
+        writeRequests.add(user);
+        if (Thread.currentThread() != this) // the loop flushes its own requests before selecting again
+            selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to flush a connection's pending output a little later
+     * the windows of all the connections are the same, so the requests come about in due order
+     *
+     * @param user - the connection
+     * @param at   - System.nanoTime() the flush is due
+     */
+    void requestWrite(NioUserManager user, long at) {
+        boolean first = delayedWrites.isEmpty(); // otherwise the loop already waits for an earlier one
+        delayedWrites.add(user);
+        if (first && Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    /**
+     * Returns the connection whose frames the loop is relaying, called by the loop only
+     *
+     * @return - the connection, null if the loop isn't reading
+     */
+    NioUserManager reading() {
+        return reading;
+    }
+
+    /**
+     * Runs a task on the loop's thread
+     * used to finish work that completed on another thread, such as a cluster login
+     *
+     * @param task - the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    /**
+     * Stops the loop and closes all of its connections
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Selecting loop,
+     * deals with registrations, reads and writes
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                NioUserManager delayed = delayedWrites.peek();
+                if (delayed == null) {
+                    selector.select();
+                } else {
+                    long wait = delayed.flushAt() - System.nanoTime();
+                    if (wait <= 0)
+                        selector.selectNow();
+                    else
+                        selector.select((wait + 999999) / 1000000); // select waits whole milliseconds
+                }
+                registerNewChannels();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioUserManager user = (NioUserManager) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            reading = user;
+                            user.read(readBuffer);
+                            reading = null;
+                        }
+                        if (key.isValid() && key.isWritable())
+                            user.flush();
+                    } catch (RuntimeException e) {
+                        reading = null;
+                        failed(user, e);
+                    }
+                }
+                flushRequested();
+                flushDelayed();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioUserManager) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Registers the channels handed by the acceptor
+     */
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioUserManager user = new NioUserManager(channel, key, server, this);
+                key.attach(user);
+            } catch (IOException e) { // closed before registration, or couldn't register
+                server.release(channel.socket().getInetAddress());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks handed by other threads
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) { // the task's connection is closed by the task's owner, if at all
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Flushes the connections that asked for it
+     */
+    private void flushRequested() {
+        NioUserManager user;
+        while ((user = writeRequests.poll()) != null) {
+            try {
+                user.flush();
+            } catch (RuntimeException e) {
+                failed(user, e);
+            }
+        }
+    }
+
+    /**
+     * Flushes the connections whose delayed flush is due
+     */
+    private void flushDelayed() {
+        long now = System.nanoTime();
+        NioUserManager user;
+        while ((user = delayedWrites.peek()) != null && user.flushAt() - now <= 0) {
+            delayedWrites.poll();
+            try {
+                user.flush();
+            } catch (RuntimeException e) {
+                failed(user, e);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection whose serving failed unexpectedly, the loop goes on
+     *
+     * @param user - the connection
+     * @param e    - the failure
+     */
+    private void failed(NioUserManager user, RuntimeException e) {
+        server.console("Closing " + user.getUserName() + " - " + e);
+        e.printStackTrace();
+        try {
+            user.close();
+        } catch (RuntimeException ignored) { // closed as far as it could be
+        }
+    }
+}
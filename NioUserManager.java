@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * NioUserManager class
+ * Connection handler for a server's user in NIO mode
+ * speaks the same protocol as UserManager but never blocks,
+ * all of its I/O is done by the owning event loop
+ * frames sent to the user are queued already encoded (EncodedMessage),
+ * broadcasts write the same bytes to every user (a direct copy for large rooms, see EncodedMessage),
+ * the queued frames are written together, a gathering write of up to GATHER buffers (see Server.setWriteCoalescing)
+ * frames are relayed straight from the loop's read buffer, a chat line allocates only its outgoing frame
+ * an event loop never waits for room in a user's queue, that would stall all of the loop's connections,
+ * in BLOCK policy a filling queue stops reading the connection that sends to it instead, until the queue drains
+ */
+public class NioUserManager implements UserConnection {
+    private static final int GATHER = 64; // most frames in one gathering write
+    private final SocketChannel channel; // client's channel
+    private final SelectionKey key; // channel's key in the loop's selector
+    private final Server server; // server
+    private final NioEventLoop loop; // owning event loop
+    private final OutboundQueue<EncodedMessage> outQueue; // data waiting to be written
+    private final SendStats stats; // what the loop wrote
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(); // true while a flush is pending in the loop
+    private final FrameDecoder decoder = new FrameDecoder(); // decodes the client's frames
+    private final ByteBuffer[] pending = new ByteBuffer[GATHER]; // encoded frames being written
+    private final EncodedMessage[] pendingMessages = new EncodedMessage[GATHER]; // the messages of the pending buffers
+    private int first; // first pending buffer not fully written
+    private int count; // pending buffers
+    private volatile long flushAt; // System.nanoTime() of a delayed flush, see NioEventLoop
+    private volatile boolean closeRequested; // the user is too slow and must be closed by the loop
+    private volatile String userName; // client's username, null until approved
+    private byte[] encodedName; // username's UTF-8 bytes, stamped on the relayed chat lines, used by the loop only
+    private volatile Room room; // the user's room, null until joined
+    private volatile boolean closed; // closed flag
+    private boolean claiming; // waiting for the cluster to answer a login, used by the loop only
+    private final InetAddress address; // client's address, its admission slot is freed on close
+    private final RateLimiter messageLimiter; // limits the frames the user sends, null for no limit
+    private final Queue<NioUserManager> stalled = new ConcurrentLinkedQueue<>(); // senders not read until the queue drains
+    private boolean paused; // not read, a user it sends to is too far behind, used by the loop only
+
+    /**
+     * Creates a new user connection manager
+     *
+     * @param channel - the client's channel
+     * @param key     - the channel's selection key
+     * @param server  - the server
+     * @param loop    - the owning event loop
+     */
+    public NioUserManager(SocketChannel channel, SelectionKey key, Server server, NioEventLoop loop) {
+        this.channel = channel;
+        this.key = key;
+        this.server = server;
+        this.loop = loop;
+        outQueue = server.newOutboundQueue();
+        stats = new SendStats(server.metrics());
+        messageLimiter = server.newMessageLimiter();
+        address = channel.socket().getInetAddress();
+        decoder.setMaxLength(Protocol.MAX_LOGIN_FRAME_LENGTH); // raised once logged in
+    }
+
+    /**
+     * Reads whatever is available from the channel
+     * called by the event loop only
+     *
+     * @param buffer - the loop's read buffer
+     */
+    void read(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) { // client closed the connection
+                close();
+                return;
+            }
+            buffer.flip();
+            ByteBuffer body;
+            while (!closed && (body = decoder.nextBody(buffer)) != null) {
+                if (userName != null) {
+                    server.relay(this, encodedName, body);
+                    continue;
+                }
+                Frame frame = Protocol.decode(body);
+                if (frame != null)
+                    login(frame);
+            }
+        } catch (IOException e) { // if error occurred, or a malformed frame
+            close();
+        }
+    }
+
+    /**
+     * Deals with a complete frame from a client that didn't log in yet
+     * the client must log in before anything else
+     * a login may be answered by another cluster node, frames sent while waiting for it are ignored
+     *
+     * @param frame - the frame
+     */
+    private void login(Frame frame) {
+        if (claiming)
+            return;
+        if (frame.getType() != Frame.Type.LOGIN) {
+            server.metrics().loginRetry();
+            send(Frame.loginAck(false));
+            return;
+        }
+        final String name = frame.getName();
+        CompletableFuture<Boolean> added = server.addUser(this, name); // trying to add username, if username not already exists
+        if (added.isDone()) { // answered locally
+            loggedIn(name, added.join());
+            return;
+        }
+        claiming = true;
+        added.thenAccept(new Consumer<Boolean>() {
+            @Override
+            public void accept(final Boolean addedSucceeded) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loggedIn(name, addedSucceeded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Finishes a login, called by the event loop only
+     *
+     * @param name           - the requested username
+     * @param addedSucceeded - true if the username was approved
+     */
+    private void loggedIn(String name, boolean addedSucceeded) {
+        claiming = false;
+        if (closed) { // client left while waiting
+            if (addedSucceeded)
+                server.removeUser(this, name);
+            return;
+        }
+        send(Frame.loginAck(addedSucceeded));
+        if (!addedSucceeded) {
+            server.metrics().loginRetry();
+            return;
+        }
+        encodedName = Protocol.utf8(name);
+        userName = name;
+        decoder.setMaxLength(Protocol.MAX_FRAME_LENGTH);
+        server.announceNewConnection(this, userName); // users list to the user, notifying all clients about the connection
+    }
+
+    /**
+     * Sends a frame to the client
+     *
+     * @param frame - the frame
+     */
+    @Override
+    public void send(Frame frame) {
+        send(EncodedMessage.of(frame));
+    }
+
+    /**
+     * Sends an encoded frame to the client
+     * the message is queued and written by the event loop
+     *
+     * @param message - the message
+     */
+    @Override
+    public void send(EncodedMessage message) {
+        if (closed || closeRequested)
+            return;
+        Thread current = Thread.currentThread();
+        boolean io = current instanceof NioEventLoop; // no loop may wait, it would stall all of its connections
+        boolean accepted = io ? outQueue.offerNow(message) : outQueue.offer(message);
+        if (io && accepted && outQueue.overflow() == OutboundQueue.Overflow.BLOCK && outQueue.depth() * 2 >= outQueue.capacity())
+            stall(((NioEventLoop) current).reading()); // half full, the sender waits instead of the loop
+        if (!accepted) { // client is too slow
+            server.console(userName + " is too slow, disconnecting.");
+            closeRequested = true;
+            loop.requestWrite(this); // even if a flush is pending, it may wait for a socket that never drains
+            return;
+        }
+        long window = server.getCoalesceNanos();
+        if (writeScheduled.compareAndSet(false, true)) {
+            if (window == 0) {
+                loop.requestWrite(this);
+            } else { // more may come meanwhile
+                flushAt = System.nanoTime() + window;
+                loop.requestWrite(this, flushAt);
+            }
+        } else if (window > 0 && outQueue.depth() == GATHER) { // a full write is queued, no need to wait
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Stops reading a sender until the queue drains, called by the sender's loop only
+     *
+     * @param sender - the user whose frame is relayed, null if none
+     */
+    private void stall(NioUserManager sender) {
+        if (sender == null || sender == this || sender.paused)
+            return;
+        sender.paused = true;
+        if (sender.key.isValid())
+            sender.key.interestOps(sender.key.interestOps() & ~SelectionKey.OP_READ);
+        stalled.add(sender);
+        if (closed) // the queue won't drain
+            resumeStalled();
+    }
+
+    /**
+     * Reads again the senders stopped by the queue
+     */
+    private void resumeStalled() {
+        NioUserManager sender;
+        while ((sender = stalled.poll()) != null) {
+            final NioUserManager s = sender;
+            s.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    s.paused = false;
+                    if (!s.closed && s.key.isValid())
+                        s.key.interestOps(s.key.interestOps() | SelectionKey.OP_READ);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the time of the delayed flush
+     *
+     * @return - System.nanoTime() it's due
+     */
+    long flushAt() {
+        return flushAt;
+    }
+
+    /**
+     * Takes the next queued messages, unless the last ones aren't written yet
+     *
+     * @return - the number of pending buffers
+     */
+    private int gather() {
+        if (first < count)
+            return count - first;
+        first = count = 0;
+        long bytes = 0;
+        EncodedMessage message;
+        while (count < GATHER && bytes < server.getCoalesceBytes() && (message = outQueue.poll()) != null) {
+            pending[count] = message.buffer();
+            pendingMessages[count] = message;
+            bytes += pending[count++].remaining();
+        }
+        return count;
+    }
+
+    /**
+     * Writes as much of the pending output as the channel accepts
+     * called by the event loop only
+     */
+    void flush() {
+        if (closed)
+            return;
+        if (closeRequested) {
+            close();
+            return;
+        }
+        try {
+            while (true) {
+                while (gather() > 0) {
+                    channel.write(pending, first, count - first);
+                    stats.wrote();
+                    for (; first < count && !pending[first].hasRemaining(); first++) {
+                        stats.sent(pendingMessages[first]);
+                        pending[first] = null;
+                        pendingMessages[first] = null;
+                    }
+                    if (first < count) { // socket buffer is full, waiting until writable
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                writeScheduled.set(false);
+                if (outQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) // nothing was added meanwhile
+                    return;
+            }
+        } catch (IOException e) {
+            close();
+        } finally {
+            if (!stalled.isEmpty() && outQueue.depth() * 4 <= outQueue.capacity()) // drained enough
+                resumeStalled();
+        }
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public SendStats getSendStats() {
+        return stats;
+    }
+
+    @Override
+    public Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outQueue.depth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outQueue.dropped();
+    }
+
+    @Override
+    public RateLimiter getMessageLimiter() {
+        return messageLimiter;
+    }
+
+    /**
+     * Closing the connection
+     * removes the user, notifies all clients and frees the connection's slot
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        outQueue.clear();
+        server.removeUser(this, userName); // notifying all clients when disconnecting
+        server.release(address);
+        resumeStalled();
+    }
+}
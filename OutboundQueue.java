@@ -0,0 +1,175 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OutboundQueue class
+ * A bounded queue of data waiting to be written to a single client
+ * filled by any thread that sends to the client and drained by the client's writer,
+ * what happens when it is full is decided by its overflow policy
+ *
+ * @param <T> - type of the queued data
+ */
+public class OutboundQueue<T> {
+    /**
+     * What to do when the queue is full
+     */
+    public enum Overflow {
+        DROP_OLDEST, // drop the oldest queued data to make room
+        DISCONNECT, // disconnect the slow client
+        BLOCK // make the sender wait for room, disconnect if it takes too long
+    }
+
+    private final ArrayBlockingQueue<T> queue; // the queued data
+    private final Overflow overflow; // overflow policy
+    private final long blockMillis; // longest time a sender waits in BLOCK policy
+    private final AtomicLong dropped = new AtomicLong(); // data dropped because the queue was full
+
+    /**
+     * Creates a queue
+     *
+     * @param capacity    - the maximum number of queued data
+     * @param overflow    - what to do when the queue is full
+     * @param blockMillis - longest time a sender waits for room in BLOCK policy
+     */
+    public OutboundQueue(int capacity, Overflow overflow, long blockMillis) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        this.overflow = overflow;
+        this.blockMillis = blockMillis;
+    }
+
+    /**
+     * Adds data to the queue according to the overflow policy
+     *
+     * @param data - the data
+     * @return - true if the client may stay connected, false if it is too slow and must be disconnected
+     */
+    public boolean offer(T data) {
+        return offer(data, true);
+    }
+
+    /**
+     * Adds data to the queue without ever waiting
+     * BLOCK policy disconnects right away, used by threads that must not wait (like an event loop)
+     *
+     * @param data - the data
+     * @return - true if the client may stay connected, false if it is too slow and must be disconnected
+     */
+    public boolean offerNow(T data) {
+        return offer(data, false);
+    }
+
+    /**
+     * Adds data to the queue according to the overflow policy
+     *
+     * @param data    - the data
+     * @param mayWait - true if the sender may wait for room in BLOCK policy
+     * @return - true if the client may stay connected, false if it is too slow and must be disconnected
+     */
+    private boolean offer(T data, boolean mayWait) {
+        if (queue.offer(data))
+            return true;
+        switch (overflow) {
+            case DROP_OLDEST:
+                while (!queue.offer(data)) {
+                    if (queue.poll() != null)
+                        dropped.incrementAndGet();
+                }
+                return true;
+            case BLOCK:
+                try {
+                    if (mayWait && queue.offer(data, blockMillis, TimeUnit.MILLISECONDS))
+                        return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dropped.incrementAndGet();
+                return false;
+            default: // DISCONNECT
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Removes the next data, waiting until there is some
+     *
+     * @return - the data
+     * @throws InterruptedException - the writer was stopped
+     */
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Removes the next data if there is any
+     *
+     * @return - the data, null if the queue is empty
+     */
+    public T poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Removes the next data, waiting a while until there is some
+     *
+     * @param nanos - longest wait
+     * @return - the data, null if none came in time
+     * @throws InterruptedException - the writer was stopped
+     */
+    public T poll(long nanos) throws InterruptedException {
+        return queue.poll(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns true if nothing is queued
+     *
+     * @return - true if nothing is queued, false otherwise
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Drops everything queued, used when the client is gone
+     */
+    public void clear() {
+        queue.clear();
+    }
+
+    /**
+     * Returns the number of queued data
+     *
+     * @return - queue depth
+     */
+    public int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the maximum number of queued data
+     *
+     * @return - the capacity
+     */
+    public int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * Returns the number of data dropped because the queue was full
+     *
+     * @return - dropped data count
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the queue's overflow policy
+     *
+     * @return - the overflow policy
+     */
+    public Overflow overflow() {
+        return overflow;
+    }
+}
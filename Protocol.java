@@ -0,0 +1,392 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol class
+ * The chat's binary wire format, used in both directions
+ * every frame is:
+ * int length - number of bytes that follow
+ * byte version - protocol version
+ * byte type - frame type code (see Frame.Type)
+ * payload - the type's fields in order, ints are big endian,
+ * strings are an unsigned short length followed by UTF-8 bytes
+ * frames of an unknown type are skipped, so newer peers may add types
+ * version 2 added the users list versions (seq) to JOIN, LEAVE and USER_LIST
+ * version 3 added the server's receive stamp (long seq, long time) to CHAT and QUESTION
+ */
+public final class Protocol {
+    public static final byte VERSION = 3; // current protocol version
+    public static final int LENGTH_FIELD = 4; // size of the length prefix
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024; // largest frame accepted
+    public static final int MAX_LOGIN_FRAME_LENGTH = 1024; // largest frame accepted before the login, a LOGIN is tiny
+    private static final int FIRST_BODY = 4096; // a larger body's buffer starts at this size and grows as its bytes arrive
+    public static final int MAX_STRING_LENGTH = 0xFFFF; // largest string in bytes
+    private static final int STAMP = 16; // a receive stamp, seq and time
+    public static final String LOBBY = "lobby"; // the room users join on login
+
+    private Protocol() {
+    }
+
+    /**
+     * Encodes a frame, including its length prefix
+     *
+     * @param frame - the frame
+     * @return - the encoded frame
+     */
+    public static byte[] encode(Frame frame) {
+        byte[] name = utf8(frame.getName());
+        byte[] text = utf8(frame.getText());
+        byte[][] names = new byte[frame.getNames().length][];
+        int length = 2; // version and type
+        switch (frame.getType()) {
+            case LOGIN:
+                length += 2 + name.length;
+                break;
+            case JOIN:
+            case LEAVE:
+                length += 2 + name.length + 8;
+                break;
+            case LOGIN_ACK:
+                length += 1;
+                break;
+            case CHAT:
+                length += 2 + name.length + 2 + text.length + STAMP;
+                break;
+            case QUESTION:
+                length += 2 + name.length + 4 + 2 + text.length + STAMP;
+                break;
+            case SCORE:
+                length += 2 + name.length + 4;
+                break;
+            case JOIN_ROOM:
+                length += 2 + text.length;
+                break;
+            case USER_LIST:
+                length += 8 + 4;
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = utf8(frame.getNames()[i]);
+                    length += 2 + names[i].length;
+                }
+                break;
+        }
+        ByteBuffer b = ByteBuffer.allocate(LENGTH_FIELD + length);
+        b.putInt(length);
+        b.put(VERSION);
+        b.put(frame.getType().code());
+        switch (frame.getType()) {
+            case LOGIN:
+                putString(b, name);
+                break;
+            case JOIN:
+            case LEAVE:
+                putString(b, name);
+                b.putLong(frame.getSeq());
+                break;
+            case LOGIN_ACK:
+                b.put((byte) frame.getNumber());
+                break;
+            case CHAT:
+                putString(b, name);
+                putString(b, text);
+                b.putLong(frame.getSeq());
+                b.putLong(frame.getTime());
+                break;
+            case QUESTION:
+                putString(b, name);
+                b.putInt(frame.getNumber());
+                putString(b, text);
+                b.putLong(frame.getSeq());
+                b.putLong(frame.getTime());
+                break;
+            case SCORE:
+                putString(b, name);
+                b.putInt(frame.getNumber());
+                break;
+            case JOIN_ROOM:
+                putString(b, text);
+                break;
+            case USER_LIST:
+                b.putLong(frame.getSeq());
+                b.putInt(names.length);
+                for (byte[] n : names) {
+                    putString(b, n);
+                }
+                break;
+        }
+        return b.array();
+    }
+
+    /**
+     * Decodes a frame's body (everything after the length prefix)
+     *
+     * @param body - the body, from its position to its limit
+     * @return - the frame, null if its type is unknown
+     * @throws ProtocolException - unsupported version or malformed frame
+     */
+    public static Frame decode(ByteBuffer body) throws ProtocolException {
+        try {
+            byte version = body.get();
+            if (version != VERSION)
+                throw new ProtocolException("Unsupported protocol version " + version);
+            Frame.Type type = Frame.Type.of(body.get());
+            if (type == null) // sent by a newer peer
+                return null;
+            switch (type) {
+                case LOGIN:
+                    return Frame.login(getString(body));
+                case JOIN:
+                    return Frame.join(getString(body), body.getLong());
+                case LEAVE:
+                    return Frame.leave(getString(body), body.getLong());
+                case LOGIN_ACK:
+                    return Frame.loginAck(body.get() == 1);
+                case CHAT:
+                    return Frame.chat(getString(body), getString(body), body.getLong(), body.getLong());
+                case QUESTION:
+                    return Frame.question(getString(body), body.getInt(), getString(body), body.getLong(), body.getLong());
+                case SCORE:
+                    return Frame.score(getString(body), body.getInt());
+                case RESYNC:
+                    return Frame.resync();
+                case JOIN_ROOM:
+                    return Frame.joinRoom(getString(body));
+                case LEAVE_ROOM:
+                    return Frame.leaveRoom();
+                case USER_LIST:
+                    long seq = body.getLong();
+                    int count = body.getInt();
+                    if (count < 0 || count > body.remaining() / 2)
+                        throw new ProtocolException("Bad users count " + count);
+                    String[] names = new String[count];
+                    for (int i = 0; i < count; i++) {
+                        names[i] = getString(body);
+                    }
+                    return Frame.userList(names, seq);
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) { // frame is shorter than its fields
+            throw new ProtocolException("Malformed frame: " + e);
+        }
+    }
+
+    /**
+     * Re-encodes a client's chat line as sent to the room, stamped with the sender's name and its receive stamp
+     * the text is copied as is from the client's bytes, nothing is decoded,
+     * so relaying a chat line allocates only the returned frame
+     *
+     * @param body   - a frame's body (everything after the length prefix), not consumed
+     * @param sender - the sender's encoded name
+     * @param seq    - receive order in the room
+     * @param time   - receive time
+     * @return - the encoded frame including its length prefix, null if the body isn't a well formed chat line
+     */
+    public static byte[] stampChat(ByteBuffer body, byte[] sender, long seq, long time) {
+        int p = body.position();
+        int end = body.limit();
+        if (end - p < 4 || body.get(p) != VERSION || body.get(p + 1) != Frame.Type.CHAT.code())
+            return null;
+        int text = p + 4 + (body.getShort(p + 2) & 0xFFFF); // the client's name is skipped
+        if (text + 2 > end)
+            return null;
+        int textField = 2 + (body.getShort(text) & 0xFFFF); // text length and bytes
+        if (text + textField + STAMP > end)
+            return null;
+        int length = 2 + 2 + sender.length + textField + STAMP;
+        byte[] frame = new byte[LENGTH_FIELD + length];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = VERSION;
+        frame[5] = Frame.Type.CHAT.code();
+        frame[6] = (byte) (sender.length >>> 8);
+        frame[7] = (byte) sender.length;
+        System.arraycopy(sender, 0, frame, 8, sender.length);
+        body.get(text, frame, 8 + sender.length, textField);
+        ByteBuffer.wrap(frame, frame.length - STAMP, STAMP).putLong(seq).putLong(time); // the client's stamp is replaced
+        return frame;
+    }
+
+    /**
+     * Reads the next frame from a stream, skipping frames of unknown types
+     *
+     * @param in - the stream
+     * @return - the frame, null if the stream ended
+     * @throws IOException - reading failed or the frame is malformed
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        return read(in, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Reads the next frame from a stream, skipping frames of unknown types
+     *
+     * @param in        - the stream
+     * @param maxLength - the longest frame accepted
+     * @return - the frame, null if the stream ended
+     * @throws IOException - reading failed or the frame is malformed
+     */
+    public static Frame read(DataInputStream in, int maxLength) throws IOException {
+        while (true) {
+            ByteBuffer body = readBody(in, null, maxLength);
+            if (body == null)
+                return null;
+            Frame frame = decode(body);
+            if (frame != null)
+                return frame;
+        }
+    }
+
+    /**
+     * Reads the next frame's body (everything after the length prefix) from a stream
+     * a body that fits the given buffer is read into it, so a reader that keeps one buffer
+     * reads its frames without allocating, larger bodies get a buffer of their own
+     *
+     * @param in     - the stream
+     * @param buffer - a reusable heap buffer, null to always allocate
+     * @return - the body, from its position to its limit, null if the stream ended
+     * @throws IOException - reading failed or the length is out of range
+     */
+    public static ByteBuffer readBody(DataInputStream in, ByteBuffer buffer) throws IOException {
+        return readBody(in, buffer, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Reads the next frame's body (everything after the length prefix) from a stream
+     * a body that doesn't fit the given buffer gets one of its own, grown as its bytes arrive,
+     * so a length prefix alone never costs a large allocation
+     *
+     * @param in        - the stream
+     * @param buffer    - a reusable heap buffer, null to always allocate
+     * @param maxLength - the longest frame accepted
+     * @return - the body, from its position to its limit, null if the stream ended
+     * @throws IOException - reading failed or the length is out of range
+     */
+    public static ByteBuffer readBody(DataInputStream in, ByteBuffer buffer, int maxLength) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) { // closed between frames
+            return null;
+        }
+        checkLength(length, maxLength);
+        ByteBuffer b = buffer != null && buffer.capacity() >= length ? buffer : newBody(length);
+        b.clear();
+        while (b.position() < length) {
+            if (!b.hasRemaining())
+                b = grow(b, length);
+            int n = Math.min(b.remaining(), length - b.position());
+            in.readFully(b.array(), b.arrayOffset() + b.position(), n);
+            b.position(b.position() + n);
+        }
+        return b.flip();
+    }
+
+    /**
+     * Creates the buffer of a frame body that is about to arrive
+     *
+     * @param length - the body's length
+     * @return - an empty buffer, smaller than the body if the body is large
+     */
+    public static ByteBuffer newBody(int length) {
+        return ByteBuffer.allocate(Math.min(length, FIRST_BODY));
+    }
+
+    /**
+     * Grows a full body buffer, doubling it up to the body's length
+     *
+     * @param body   - the buffer, in write mode, full
+     * @param length - the body's length
+     * @return - the new buffer, with the bytes so far and positioned after them
+     */
+    public static ByteBuffer grow(ByteBuffer body, int length) {
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(length, 2L * body.capacity()));
+        return b.put(body.flip());
+    }
+
+    /**
+     * Writes a frame to a stream and flushes it
+     *
+     * @param out   - the stream
+     * @param frame - the frame
+     * @throws IOException - writing failed
+     */
+    public static void write(OutputStream out, Frame frame) throws IOException {
+        out.write(encode(frame));
+        out.flush();
+    }
+
+    /**
+     * Checks a frame's length prefix
+     *
+     * @param length - the length
+     * @throws ProtocolException - the length is out of range
+     */
+    public static void checkLength(int length) throws ProtocolException {
+        checkLength(length, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Checks a frame's length prefix against a limit
+     *
+     * @param length    - the length
+     * @param maxLength - the longest frame accepted
+     * @throws ProtocolException - the length is out of range
+     */
+    public static void checkLength(int length, int maxLength) throws ProtocolException {
+        if (length < 2 || length > maxLength)
+            throw new ProtocolException("Bad frame length " + length);
+    }
+
+    /**
+     * Encodes a string
+     *
+     * @param s - the string
+     * @return - its UTF-8 bytes
+     */
+    public static byte[] utf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH)
+            throw new IllegalArgumentException("String too long: " + bytes.length + " bytes");
+        return bytes;
+    }
+
+    /**
+     * Writes an encoded string
+     *
+     * @param b     - destination
+     * @param bytes - the string's bytes
+     */
+    private static void putString(ByteBuffer b, byte[] bytes) {
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    /**
+     * Reads a string
+     *
+     * @param b - source
+     * @return - the string
+     */
+    private static String getString(ByteBuffer b) {
+        int length = b.getShort() & 0xFFFF;
+        if (length > b.remaining())
+            throw new IndexOutOfBoundsException("string of " + length + " bytes");
+        String s;
+        if (b.hasArray()) {
+            s = new String(b.array(), b.arrayOffset() + b.position(), length, StandardCharsets.UTF_8);
+        } else { // direct buffer
+            byte[] bytes = new byte[length];
+            b.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        b.position(b.position() + length);
+        return s;
+    }
+}
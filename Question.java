@@ -0,0 +1,94 @@
+/**
+ * Question class
+ * A trivia question, its category, difficulty and the answers it accepts
+ * decoded from a QuestionBank when it is picked, immutable
+ * guesses are checked by an AnswerMatcher, compiled on the first check
+ */
+public class Question {
+    private final String text; // the question
+    private final String category; // category name
+    private final int difficulty; // 1 (easy) to 5 (hard), 0 if not rated
+    private final String[] answers; // accepted answers, the first is the one revealed
+    private AnswerMatcher matcher; // checks the guesses, null until the first check
+
+    /**
+     * Creates a question
+     *
+     * @param text       - the question
+     * @param category   - category name
+     * @param difficulty - 1 (easy) to 5 (hard), 0 if not rated
+     * @param answers    - accepted answers, at least one, the first is the one revealed
+     */
+    public Question(String text, String category, int difficulty, String[] answers) {
+        if (answers.length == 0)
+            throw new IllegalArgumentException("no answers for " + text);
+        this.text = text;
+        this.category = category;
+        this.difficulty = difficulty;
+        this.answers = answers;
+    }
+
+    /**
+     * Returns the question
+     *
+     * @return - the question
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the category
+     *
+     * @return - category name
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Returns the difficulty
+     *
+     * @return - 1 (easy) to 5 (hard), 0 if not rated
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Returns the answer revealed to the players
+     *
+     * @return - the first accepted answer
+     */
+    public String getAnswer() {
+        return answers[0];
+    }
+
+    /**
+     * Returns all the accepted answers
+     *
+     * @return - a copy of the answers
+     */
+    public String[] getAnswers() {
+        return answers.clone();
+    }
+
+    /**
+     * Checks a player's answer
+     * case, spacing, accents, the way a number is written and small typos don't matter (see AnswerMatcher)
+     *
+     * @param guess - the player's answer
+     * @return - true if it is one of the accepted answers
+     */
+    public boolean isAnswer(String guess) {
+        AnswerMatcher m = matcher;
+        if (m == null) // immutable, a thread that doesn't see it just compiles its own
+            matcher = m = new AnswerMatcher(answers);
+        return m.matches(guess);
+    }
+
+    @Override
+    public String toString() {
+        return text + " (" + category + ", " + difficulty + ") - " + String.join(" | ", answers);
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * QuestionBank interface
+ * A read only, indexed set of trivia questions
+ * questions are numbered 0 to size() - 1, a question is only decoded when it is asked for,
+ * category and difficulty can be checked without decoding it
+ * safe to read from many threads once loaded
+ */
+public interface QuestionBank {
+    /**
+     * Opens a bank
+     * a single bank file (.qbank) is memory mapped, text banks are loaded into the heap
+     *
+     * @param paths - a bank file, or text bank files and directories (see HeapQuestionBank)
+     * @return - the bank
+     * @throws IOException - couldn't read the bank
+     */
+    static QuestionBank open(String... paths) throws IOException {
+        if (paths.length == 1 && paths[0].endsWith(".qbank"))
+            return new MappedQuestionBank(Paths.get(paths[0]));
+        return HeapQuestionBank.load(paths);
+    }
+
+    /**
+     * Returns the number of questions
+     *
+     * @return - the size
+     */
+    int size();
+
+    /**
+     * Decodes a question
+     *
+     * @param index - the question's index
+     * @return - the question
+     */
+    Question get(int index);
+
+    /**
+     * Returns a question's category, without decoding the question
+     *
+     * @param index - the question's index
+     * @return - category name
+     */
+    String category(int index);
+
+    /**
+     * Returns a question's difficulty, without decoding the question
+     *
+     * @param index - the question's index
+     * @return - 1 (easy) to 5 (hard), 0 if not rated
+     */
+    int difficulty(int index);
+
+    /**
+     * Returns the categories of the questions
+     *
+     * @return - category names, in the order they were first seen
+     */
+    List<String> categories();
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * QuestionBankConverter class
+ * Converts text question banks (see HeapQuestionBank) into a bank file the bot memory maps (see MappedQuestionBank)
+ * usage: QuestionBankConverter OUTPUT.qbank [bank files or directories...]
+ * the input defaults to the working directory, where the bot keeps questions.txt and answers.txt
+ */
+public class QuestionBankConverter {
+    private static final int BUFFER = 1 << 20; // bytes written at once
+
+    /**
+     * Writes to a file at a position, through a buffer
+     */
+    private static class Out {
+        private final FileChannel ch; // the file
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER); // bytes not written yet
+        private long position; // file position of the buffer's first byte
+
+        Out(FileChannel ch, long position) {
+            this.ch = ch;
+            this.position = position;
+        }
+
+        /**
+         * Returns the file position of the next byte written
+         *
+         * @return - the position
+         */
+        long position() {
+            return position + buffer.position();
+        }
+
+        /**
+         * Makes room for some bytes
+         *
+         * @param n - bytes about to be written, up to BUFFER
+         * @return - the buffer to write them to
+         * @throws IOException - writing failed
+         */
+        ByteBuffer room(int n) throws IOException {
+            if (buffer.remaining() < n)
+                flush();
+            return buffer;
+        }
+
+        /**
+         * Writes the buffered bytes
+         *
+         * @throws IOException - writing failed
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += ch.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes a bank to a bank file
+     *
+     * @param bank - the questions
+     * @param file - the bank file, replaced if it exists
+     * @throws IOException - writing failed
+     */
+    public static void write(QuestionBank bank, Path file) throws IOException {
+        List<String> categories = bank.categories();
+        if (categories.size() > MappedQuestionBank.MAX_CATEGORIES)
+            throw new IOException(categories.size() + " categories, a bank file holds " + MappedQuestionBank.MAX_CATEGORIES + " at most");
+        Map<String, Integer> ids = new HashMap<>(); // category name -> id
+        for (String c : categories) {
+            ids.put(c, ids.size());
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Out header = new Out(ch, 0);
+            ByteBuffer b = header.room(MappedQuestionBank.HEADER);
+            b.putInt(MappedQuestionBank.MAGIC).putInt(MappedQuestionBank.VERSION).putInt(bank.size()).putInt(categories.size());
+            for (String c : categories) {
+                byte[] name = Protocol.utf8(c);
+                header.room(2 + name.length).putShort((short) name.length).put(name);
+            }
+            header.flush();
+            long dataStart = header.position() + (long) bank.size() * MappedQuestionBank.INDEX_ENTRY;
+            Out index = new Out(ch, header.position());
+            Out data = new Out(ch, dataStart);
+            for (int i = 0; i < bank.size(); i++) {
+                Question q = bank.get(i);
+                byte[] text = Protocol.utf8(q.getText());
+                String[] answers = q.getAnswers();
+                if (answers.length > 0xFF)
+                    answers = Arrays.copyOf(answers, 0xFF);
+                byte[][] encoded = new byte[answers.length][];
+                int length = 2 + text.length + 1;
+                for (int a = 0; a < answers.length; a++) {
+                    encoded[a] = Protocol.utf8(answers[a]);
+                    length += 2 + encoded[a].length;
+                }
+                long offset = data.position() - dataStart;
+                long left = MappedQuestionBank.SEGMENT - offset % MappedQuestionBank.SEGMENT;
+                if (left < length) { // records never cross a segment
+                    for (long p = 0; p < left; p++) {
+                        data.room(1).put((byte) 0);
+                    }
+                    offset += left;
+                }
+                data.room(2 + text.length).putShort((short) text.length).put(text);
+                data.room(1).put((byte) encoded.length);
+                for (byte[] a : encoded) {
+                    data.room(2 + a.length).putShort((short) a.length).put(a);
+                }
+                index.room(MappedQuestionBank.INDEX_ENTRY).putLong(offset).putShort(ids.get(q.getCategory()).shortValue())
+                        .put((byte) q.getDifficulty()).put((byte) 0);
+            }
+            index.flush();
+            data.flush();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: QuestionBankConverter OUTPUT.qbank [bank files or directories...]");
+            return;
+        }
+        String[] paths = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : new String[]{"."};
+        long start = System.nanoTime();
+        QuestionBank bank = HeapQuestionBank.load(paths);
+        Path out = Paths.get(args[0]);
+        write(bank, out);
+        System.out.printf("%d questions in %d categories written to %s in %d ms%n",
+                bank.size(), bank.categories().size(), out, (System.nanoTime() - start) / 1000000);
+    }
+}
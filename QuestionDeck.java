@@ -0,0 +1,98 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * QuestionDeck class
+ * Picks a game's questions from a bank at random, without repeating a question until all were asked
+ * a lazy Fisher-Yates shuffle: every pick is O(1) and only the swapped positions are remembered,
+ * so a game over a bank of millions costs memory for the questions it asked, not for the bank
+ * used by one game at a time, not thread safe
+ */
+public class QuestionDeck {
+    private final QuestionBank bank; // the questions
+    private final int[] pool; // indexes of the questions that fit the filter, null for the whole bank
+    private final int size; // number of questions that can be picked
+    private final Map<Integer, Integer> swapped = new HashMap<>(); // position -> question position moved there
+    private final Random random = new Random(); // picks the questions
+    private int drawn; // positions before this one were already picked
+
+    /**
+     * Creates a deck of the whole bank
+     *
+     * @param bank - the questions
+     */
+    public QuestionDeck(QuestionBank bank) {
+        this.bank = bank;
+        pool = null;
+        size = bank.size();
+    }
+
+    /**
+     * Creates a deck of a bank's questions of a category and a difficulty range
+     * the filter is checked once over the whole bank, without decoding the questions
+     *
+     * @param bank          - the questions
+     * @param category      - category name, null for all
+     * @param minDifficulty - lowest difficulty
+     * @param maxDifficulty - highest difficulty
+     */
+    public QuestionDeck(QuestionBank bank, String category, int minDifficulty, int maxDifficulty) {
+        this.bank = bank;
+        int[] matching = new int[16];
+        int n = 0;
+        for (int i = 0; i < bank.size(); i++) {
+            int d = bank.difficulty(i);
+            if (d < minDifficulty || d > maxDifficulty || category != null && !category.equals(bank.category(i)))
+                continue;
+            if (n == matching.length)
+                matching = Arrays.copyOf(matching, n * 2);
+            matching[n++] = i;
+        }
+        pool = Arrays.copyOf(matching, n);
+        size = n;
+    }
+
+    /**
+     * Returns the number of questions in the deck
+     *
+     * @return - the size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Picks the next question
+     * once all the questions were asked, starts over with all of them
+     *
+     * @return - the question, null if the deck is empty
+     */
+    public Question next() {
+        if (size == 0)
+            return null;
+        if (drawn == size) { // all asked
+            swapped.clear();
+            drawn = 0;
+        }
+        int pick = drawn + random.nextInt(size - drawn);
+        int picked = at(pick);
+        if (pick != drawn)
+            swapped.put(pick, at(drawn)); // the position being consumed moves to the picked one
+        swapped.remove(drawn); // never read again
+        drawn++;
+        return bank.get(pool == null ? picked : pool[picked]);
+    }
+
+    /**
+     * Returns what is at a shuffled position
+     *
+     * @param position - the position
+     * @return - the position in the pool it holds
+     */
+    private int at(int position) {
+        Integer p = swapped.get(position);
+        return p == null ? position : p;
+    }
+}
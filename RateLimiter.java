@@ -0,0 +1,65 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * RateLimiter class
+ * A token bucket, lock free
+ * tokens come back at a fixed rate up to the bucket's size, a burst of that size is allowed at once
+ * kept as the single time the bucket is full again (the generic cell rate algorithm),
+ * so taking a token is one compare and set, without a refill thread or a lock
+ */
+public class RateLimiter {
+    private final long interval; // nanoseconds per token
+    private final long capacity; // nanoseconds the bucket holds, burst * interval
+    private final AtomicLong full; // clock's time when the bucket is full again
+    private final LongSupplier clock; // nanoseconds, System.nanoTime() but in tests
+    private static final LongSupplier NANO_TIME = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Creates a full bucket
+     *
+     * @param perSecond - tokens per second
+     * @param burst     - the bucket's size, tokens taken at once
+     */
+    public RateLimiter(double perSecond, int burst) {
+        this(perSecond, burst, NANO_TIME);
+    }
+
+    /**
+     * Creates a full bucket on a given clock, for tests
+     *
+     * @param perSecond - tokens per second
+     * @param burst     - the bucket's size, tokens taken at once
+     * @param clock     - the time in nanoseconds
+     */
+    RateLimiter(double perSecond, int burst, LongSupplier clock) {
+        if (perSecond <= 0 || burst <= 0)
+            throw new IllegalArgumentException("bad rate " + perSecond + "/" + burst);
+        interval = Math.max(1, (long) (1e9 / perSecond));
+        capacity = interval * burst;
+        this.clock = clock;
+        full = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Takes a token if there is one
+     *
+     * @return - true if taken, false if the bucket is empty
+     */
+    public boolean tryAcquire() {
+        long now = clock.getAsLong();
+        while (true) {
+            long at = full.get();
+            long next = (at - now > 0 ? at : now) + interval; // a full bucket doesn't save more tokens
+            if (next - now > capacity) // empty
+                return false;
+            if (full.compareAndSet(at, next))
+                return true;
+        }
+    }
+}
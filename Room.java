@@ -0,0 +1,216 @@
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Room class
+ * A named chat room, its members, broadcasts and users list
+ * every room has its own members map and its own lock,
+ * so broadcasts and joins in different rooms never wait for each other
+ * every join and leave increases the room's presence version, the sequence number of its users list
+ * in a cluster the users list also has the room's members on other nodes, broadcasts reach local members only
+ * chat lines and questions are numbered in the order the server received them, apart from the presence version
+ * a room with a history logs its lines and queues its joins catch-ups under its lock,
+ * so a joining user gets every line either live or in its catch-up, never both and never neither
+ */
+public class Room {
+    private final String NAME; // room name
+    private final ConcurrentSkipListMap<String, UserConnection> members = new ConcurrentSkipListMap<>(); // local name -> connection
+    private final TreeSet<String> names = new TreeSet<>(); // local and remote members names, guarded by this
+    private long version; // presence version, guarded by this
+    private String[] sortedNames; // users list of the current version, null until needed, guarded by this
+    private boolean closed; // the room emptied and was removed from the server, guarded by this
+    private final AtomicLong received = new AtomicLong(); // chat lines and questions received, no lock so senders never wait
+    private final ChatLog history; // the rooms chat history, null for none
+
+    /**
+     * Creates an empty room without a history
+     *
+     * @param name - the room name
+     */
+    public Room(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Creates an empty room
+     *
+     * @param name    - the room name
+     * @param history - the rooms chat history, joining users get the room's last lines, null for none
+     */
+    public Room(String name, ChatLog history) {
+        NAME = name;
+        this.history = history;
+    }
+
+    /**
+     * Numbers a chat line or a question received for the room
+     *
+     * @return - its receive order, starting at 1
+     */
+    public long nextSeq() {
+        return received.incrementAndGet();
+    }
+
+    /**
+     * Adds a user to the room
+     * the user gets the room name, its users list and its history's catch-up, everybody gets the JOIN delta
+     *
+     * @param name - the username
+     * @param user - the connection
+     * @return - true if joined, false if the room was closed meanwhile
+     */
+    public synchronized boolean join(String name, UserConnection user) {
+        if (closed)
+            return false;
+        members.put(name, user);
+        names.add(name);
+        sortedNames = null;
+        long seq = ++version;
+        user.setRoom(this);
+        user.send(Frame.joinRoom(NAME));
+        user.send(Frame.userList(sortedNames(), seq));
+        sendAll(Frame.join(name, seq));
+        if (history != null) // with the lock, the lines published before are in the catch-up, the later ones are sent live
+            history.replay(NAME, user);
+        return true;
+    }
+
+    /**
+     * Adds a member of another node to the users list
+     *
+     * @param name - the username
+     * @return - true if joined, false if the room was closed meanwhile
+     */
+    public synchronized boolean joinRemote(String name) {
+        if (closed)
+            return false;
+        if (names.add(name)) { // not a repeated join
+            sortedNames = null;
+            sendAll(Frame.join(name, ++version));
+        }
+        return true;
+    }
+
+    /**
+     * Removes a user from the room and sends the LEAVE delta to the others
+     * a room left empty is closed and must be dropped by the caller
+     *
+     * @param name - the username
+     * @param user - the connection
+     * @return - true if the room is now empty and closed, false otherwise
+     */
+    public synchronized boolean leave(String name, UserConnection user) {
+        return members.remove(name, user) && removed(name);
+    }
+
+    /**
+     * Removes a member of another node from the users list
+     * a room left empty is closed and must be dropped by the caller
+     *
+     * @param name - the username
+     * @return - true if the room is now empty and closed, false otherwise
+     */
+    public synchronized boolean leaveRemote(String name) {
+        return !members.containsKey(name) && removed(name);
+    }
+
+    /**
+     * Removes a name from the users list and sends the LEAVE delta, must hold the room's lock
+     *
+     * @param name - the username
+     * @return - true if the room is now empty and closed, false otherwise
+     */
+    private boolean removed(String name) {
+        if (!names.remove(name))
+            return false;
+        sortedNames = null;
+        sendAll(Frame.leave(name, ++version));
+        if (!names.isEmpty())
+            return false;
+        closed = true;
+        return true;
+    }
+
+    /**
+     * Sends a frame to all the room's local members
+     *
+     * @param frame - the frame to send
+     */
+    public void sendAll(Frame frame) {
+        sendAll(EncodedMessage.of(frame));
+    }
+
+    /**
+     * Sends an encoded frame to all the room's local members
+     * the same bytes are written to every member
+     *
+     * @param message - the encoded frame
+     */
+    public void sendAll(EncodedMessage message) {
+        if (members.size() >= EncodedMessage.DIRECT_FAN_OUT)
+            message.fanOut();
+        for (UserConnection u : members.values()) {
+            u.send(message);
+        }
+    }
+
+    /**
+     * Sends a line to all the room's local members and logs it in the history
+     * without a history no lock is taken, broadcasts never wait for each other
+     *
+     * @param message - the encoded line
+     */
+    public void publish(EncodedMessage message) {
+        if (history == null) {
+            sendAll(message);
+            return;
+        }
+        synchronized (this) { // the members who got the line and its place in the log must match for joins
+            sendAll(message);
+            history.append(NAME, message);
+        }
+    }
+
+    /**
+     * Sends the room's users list to one member
+     * used when the member missed a JOIN or LEAVE and asked to resync
+     *
+     * @param user - the member
+     */
+    public synchronized void sendUsersList(UserConnection user) { // the list and its version must match
+        user.send(Frame.userList(sortedNames(), version));
+    }
+
+    /**
+     * Returns the members names in ascending order, built once per version
+     * the array is shared, callers must not change it
+     *
+     * @return - the sorted names
+     */
+    private String[] sortedNames() {
+        String[] names = sortedNames;
+        if (names == null)
+            sortedNames = names = this.names.toArray(new String[0]); // already sorted, no sort needed
+        return names;
+    }
+
+    /**
+     * Returns the room name
+     *
+     * @return - the name
+     */
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Returns a live view of the local members names
+     *
+     * @return - the names
+     */
+    public Collection<String> localNames() {
+        return members.keySet();
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RoundTiming class
+ * How long every step of a trivia game takes, in milliseconds, immutable
+ * start - from the game's announcement to the first question's announcement
+ * ready - from a question's announcement ("Get Ready") until it is asked
+ * answer - time to answer a question, its last countdown milliseconds are counted down
+ * countdown - the counted down part of the answer time, 0 for none
+ * tick - time between the countdown's lines
+ * reveal - pause after a question is answered or its time is up, before the next one
+ * points - points a player needs to win
+ * grace - wait after the first right answer that reaches the bot for one the server received earlier,
+ * covers the reordering of the server's fan out and of a cluster's batches, 0 awards the first one to arrive
+ */
+public class RoundTiming {
+    public static final RoundTiming DEFAULT = new RoundTiming(5000, 5000, 30000, 5000, 1000, 0, 3, 20); // the original game's pace
+    private final long start; // until the first question's announcement
+    private final long ready; // from an announcement to the question
+    private final long answer; // time to answer
+    private final long countdown; // counted down part of the answer time
+    private final long tick; // between countdown lines
+    private final long reveal; // pause before the next question
+    private final int points; // points to win
+    private final long grace; // wait for earlier right answers
+
+    /**
+     * Creates a timing
+     *
+     * @param start     - until the first question's announcement
+     * @param ready     - from an announcement to the question
+     * @param answer    - time to answer
+     * @param countdown - counted down part of the answer time, 0 for none
+     * @param tick      - between countdown lines
+     * @param reveal    - pause before the next question
+     * @param points    - points to win
+     * @param grace     - wait for earlier right answers, 0 for none
+     */
+    public RoundTiming(long start, long ready, long answer, long countdown, long tick, long reveal, int points, long grace) {
+        if (start < 0 || ready < 0 || answer <= 0 || countdown < 0 || countdown > answer || tick <= 0 || reveal < 0 || points <= 0
+                || grace < 0)
+            throw new IllegalArgumentException("bad timing");
+        this.start = start;
+        this.ready = ready;
+        this.answer = answer;
+        this.countdown = countdown;
+        this.tick = tick;
+        this.reveal = reveal;
+        this.points = points;
+        this.grace = grace;
+    }
+
+    /**
+     * Changes some of a timing's values
+     *
+     * @param options - key=value pairs separated by spaces, keys as in the class comment
+     * @return - the new timing
+     * @throws IllegalArgumentException - unknown key or bad value
+     */
+    public RoundTiming with(String options) {
+        Map<String, Long> v = new HashMap<>();
+        v.put("start", start);
+        v.put("ready", ready);
+        v.put("answer", answer);
+        v.put("countdown", countdown);
+        v.put("tick", tick);
+        v.put("reveal", reveal);
+        v.put("points", (long) points);
+        v.put("grace", grace);
+        for (String option : options.trim().split("\\s+")) {
+            if (option.isEmpty())
+                continue;
+            String[] kv = option.split("=", 2);
+            if (kv.length != 2 || !v.containsKey(kv[0]))
+                throw new IllegalArgumentException("unknown option " + option);
+            v.put(kv[0], Long.parseLong(kv[1]));
+        }
+        return new RoundTiming(v.get("start"), v.get("ready"), v.get("answer"), v.get("countdown"),
+                v.get("tick"), v.get("reveal"), (int) (long) v.get("points"), v.get("grace"));
+    }
+
+    /**
+     * Returns the time until the first question's announcement
+     *
+     * @return - the time in milliseconds
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the time from an announcement to the question
+     *
+     * @return - the time in milliseconds
+     */
+    public long getReady() {
+        return ready;
+    }
+
+    /**
+     * Returns the time to answer
+     *
+     * @return - the time in milliseconds
+     */
+    public long getAnswer() {
+        return answer;
+    }
+
+    /**
+     * Returns the counted down part of the answer time
+     *
+     * @return - the time in milliseconds
+     */
+    public long getCountdown() {
+        return countdown;
+    }
+
+    /**
+     * Returns the time between countdown lines
+     *
+     * @return - the time in milliseconds
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Returns the pause before the next question
+     *
+     * @return - the time in milliseconds
+     */
+    public long getReveal() {
+        return reveal;
+    }
+
+    /**
+     * Returns the points a player needs to win
+     *
+     * @return - the points
+     */
+    public int getPoints() {
+        return points;
+    }
+
+    /**
+     * Returns the wait for right answers received earlier than the first one to arrive
+     *
+     * @return - the time in milliseconds
+     */
+    public long getGrace() {
+        return grace;
+    }
+
+    @Override
+    public String toString() {
+        return "start=" + start + " ready=" + ready + " answer=" + answer + " countdown=" + countdown
+                + " tick=" + tick + " reveal=" + reveal + " points=" + points + " grace=" + grace;
+    }
+}
@@ -0,0 +1,512 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Scoreboard class
+ * The players points of all the games ever played, kept across restarts, all-time and per season (a calendar month)
+ * every point is applied to the in memory boards at once and queued for a writer thread,
+ * which appends it to a log file, a queued batch at a time, so recording a point never waits for the disk
+ * the log's records are checksummed: length, CRC32, season, player, points
+ * once the log holds many more records than players it is compacted, rewritten with one record per player and season
+ * into a temporary file that atomically replaces the log, so a crash leaves either the old log or the new one
+ * recovery replays the log, a torn record at its end (a crash in the middle of a write) is cut off
+ * every board keeps its players sorted by points, for top K queries, and counts them by points in a Fenwick tree,
+ * so a player's rank takes O(log points) whatever the number of players
+ */
+public class Scoreboard {
+    private static final int COMPACT_MIN_BYTES = 1024 * 1024; // smaller logs are never compacted
+    private static final int COMPACT_RATIO = 4; // a log is compacted once it has this many records per player and season
+    private static final Change STOP = new Change(null, null, 0); // ends the writer
+    private final Path path; // the log
+    private final Map<String, Board> seasons = new HashMap<>(); // season -> its board, guarded by itself
+    private final Board allTime = new Board(); // all seasons board
+    private final LinkedBlockingQueue<Change> pending = new LinkedBlockingQueue<>(); // points not written yet
+    private final Map<String, Map<String, Integer>> totals = new HashMap<>(); // season -> player -> points, the writer's copy
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(); // the writer's record buffer
+    private final CRC32 crc = new CRC32(); // the writer's checksum
+    private DataOutputStream log; // appends to the log, the writer's
+    private long logBytes; // log's size, the writer's
+    private long records; // records in the log, the writer's
+    private long keys; // player and season pairs in the log, the writer's
+    private Thread writer; // writes the queued points
+
+    /**
+     * A player's points on a board
+     */
+    public static class Standing implements Comparable<Standing> {
+        private final String name; // the player
+        private final int points; // the player's points
+
+        private Standing(String name, int points) {
+            this.name = name;
+            this.points = points;
+        }
+
+        /**
+         * Returns the player
+         *
+         * @return - the player's name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the player's points
+         *
+         * @return - the points
+         */
+        public int getPoints() {
+            return points;
+        }
+
+        @Override
+        public int compareTo(Standing o) {
+            return points != o.points ? Integer.compare(o.points, points) : name.compareTo(o.name); // most points first
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + points;
+        }
+    }
+
+    /**
+     * A point to write
+     */
+    private static class Change {
+        private final String season; // the season
+        private final String player; // the player
+        private final int points; // points added
+
+        private Change(String season, String player, int points) {
+            this.season = season;
+            this.player = player;
+            this.points = points;
+        }
+    }
+
+    /**
+     * One leaderboard, its players sorted by points and counted by points
+     */
+    private static class Board {
+        private final Map<String, Standing> players = new HashMap<>(); // player -> standing
+        private final TreeSet<Standing> order = new TreeSet<>(); // most points first
+        private int[] counts = new int[64]; // Fenwick tree, players by points, index 1 is 1 point
+
+        /**
+         * Adds points to a player
+         *
+         * @param player - the player
+         * @param points - points added
+         */
+        private synchronized void add(String player, int points) {
+            Standing old = players.get(player);
+            int total = points;
+            if (old != null) {
+                order.remove(old);
+                count(old.points, -1);
+                total += old.points;
+            }
+            if (total >= counts.length) // grows by doubling, rebuilt at a cost that amortizes
+                grow(total);
+            Standing now = new Standing(player, total);
+            players.put(player, now);
+            order.add(now);
+            count(total, 1);
+        }
+
+        /**
+         * Returns the players with the most points
+         *
+         * @param k - number of players
+         * @return - up to k standings, most points first
+         */
+        private synchronized List<Standing> top(int k) {
+            List<Standing> top = new ArrayList<>(Math.min(k, order.size()));
+            for (Standing s : order) {
+                if (top.size() == k)
+                    break;
+                top.add(s);
+            }
+            return top;
+        }
+
+        /**
+         * Returns a player's rank, players with the same points share a rank
+         *
+         * @param player - the player
+         * @return - 1 for the most points, 0 if the player has none
+         */
+        private synchronized int rank(String player) {
+            Standing s = players.get(player);
+            if (s == null)
+                return 0;
+            int above = players.size(); // less the players with at most as many points
+            for (int i = s.points; i > 0; i -= i & -i) {
+                above -= counts[i];
+            }
+            return above + 1;
+        }
+
+        /**
+         * Returns a player's points
+         *
+         * @param player - the player
+         * @return - the points, 0 if none
+         */
+        private synchronized int points(String player) {
+            Standing s = players.get(player);
+            return s == null ? 0 : s.points;
+        }
+
+        /**
+         * Counts a player in or out of a number of points
+         *
+         * @param points - the points, at least 1
+         * @param delta  - 1 in, -1 out
+         */
+        private void count(int points, int delta) {
+            for (int i = points; i < counts.length; i += i & -i) {
+                counts[i] += delta;
+            }
+        }
+
+        /**
+         * Makes room for a number of points in the Fenwick tree
+         *
+         * @param points - the points
+         */
+        private void grow(int points) {
+            counts = new int[Integer.highestOneBit(points) << 1];
+            for (Standing s : order) {
+                count(s.points, 1);
+            }
+        }
+    }
+
+    /**
+     * Creates a scoreboard, use open()
+     *
+     * @param path - the log
+     */
+    private Scoreboard(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens a scoreboard, recovering its log, and starts its writer
+     *
+     * @param file - the log file, created if missing
+     * @return - the scoreboard
+     * @throws IOException - the log can't be read or written
+     */
+    public static Scoreboard open(String file) throws IOException {
+        final Scoreboard board = new Scoreboard(Paths.get(file));
+        board.recover();
+        board.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                board.write();
+            }
+        }, "scoreboard");
+        board.writer.setDaemon(true);
+        board.writer.start();
+        return board;
+    }
+
+    /**
+     * Adds points to a player in the current season, never waits for the disk
+     *
+     * @param player - the player
+     * @param points - points added, positive
+     */
+    public void add(String player, int points) {
+        if (points <= 0)
+            throw new IllegalArgumentException("points must be positive");
+        String season = season();
+        apply(season, player, points);
+        pending.add(new Change(season, player, points));
+    }
+
+    /**
+     * Returns the current season
+     *
+     * @return - the season's name, year and month like 2024-05
+     */
+    public String season() {
+        return YearMonth.now().toString();
+    }
+
+    /**
+     * Returns the seasons that have points
+     *
+     * @return - the seasons names, sorted
+     */
+    public Set<String> seasons() {
+        synchronized (seasons) {
+            return new TreeSet<>(seasons.keySet());
+        }
+    }
+
+    /**
+     * Returns a board's players with the most points
+     *
+     * @param season - the season, null for all-time
+     * @param k      - number of players
+     * @return - up to k standings, most points first
+     */
+    public List<Standing> top(String season, int k) {
+        Board b = board(season);
+        return b == null ? new ArrayList<Standing>() : b.top(k);
+    }
+
+    /**
+     * Returns a player's rank on a board, players with the same points share a rank
+     *
+     * @param season - the season, null for all-time
+     * @param player - the player
+     * @return - 1 for the most points, 0 if the player has no points
+     */
+    public int rank(String season, String player) {
+        Board b = board(season);
+        return b == null ? 0 : b.rank(player);
+    }
+
+    /**
+     * Returns a player's points on a board
+     *
+     * @param season - the season, null for all-time
+     * @param player - the player
+     * @return - the points, 0 if none
+     */
+    public int points(String season, String player) {
+        Board b = board(season);
+        return b == null ? 0 : b.points(player);
+    }
+
+    /**
+     * Writes the queued points and closes the log
+     */
+    public void close() {
+        pending.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a board
+     *
+     * @param season - the season, null for all-time
+     * @return - the board, null if the season has no points
+     */
+    private Board board(String season) {
+        if (season == null)
+            return allTime;
+        synchronized (seasons) {
+            return seasons.get(season);
+        }
+    }
+
+    /**
+     * Adds points to the in memory boards
+     *
+     * @param season - the season
+     * @param player - the player
+     * @param points - points added
+     */
+    private void apply(String season, String player, int points) {
+        Board b;
+        synchronized (seasons) {
+            b = seasons.get(season);
+            if (b == null) {
+                b = new Board();
+                seasons.put(season, b);
+            }
+        }
+        b.add(player, points);
+        allTime.add(player, points);
+    }
+
+    /**
+     * Replays the log into the boards, cuts off a torn record at its end and opens the log for appending
+     * a log recovered with many more records than players is compacted right away, so restarts stay quick
+     *
+     * @throws IOException - the log can't be read or written
+     */
+    private void recover() throws IOException {
+        long good = 0; // end of the last whole record
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+                byte[] body = new byte[256];
+                while (true) {
+                    int length;
+                    long sum;
+                    try {
+                        length = in.readInt();
+                        sum = in.readInt() & 0xFFFFFFFFL;
+                        if (length <= 0 || length > 2 * (Protocol.MAX_STRING_LENGTH + 2) + 4)
+                            break;
+                        if (body.length < length)
+                            body = new byte[length];
+                        in.readFully(body, 0, length);
+                    } catch (EOFException e) { // the end, or a torn record
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if (crc.getValue() != sum)
+                        break;
+                    DataInputStream r = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+                    String season = r.readUTF();
+                    String player = r.readUTF();
+                    int points = r.readInt();
+                    apply(season, player, points);
+                    total(season, player, points);
+                    records++;
+                    good += 8 + length;
+                }
+            }
+            if (good < Files.size(path)) { // a crash in the middle of a write
+                System.out.println("Scoreboard - Cutting a torn record off " + path + " at " + good);
+                try (RandomAccessFile f = new RandomAccessFile(path.toFile(), "rw")) {
+                    f.setLength(good);
+                }
+            }
+        }
+        logBytes = good;
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile(), true), 64 * 1024));
+        try {
+            compactIfDue();
+        } catch (IOException e) { // the old log is kept, compacted by the writer later
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The writer's loop, appends the queued points a batch at a time and compacts the log when it's due
+     */
+    private void write() {
+        List<Change> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                batch.add(STOP);
+            }
+            pending.drainTo(batch);
+            try {
+                for (Change c : batch) {
+                    if (c == STOP) {
+                        stopping = true;
+                        continue;
+                    }
+                    logBytes += append(log, c.season, c.player, c.points);
+                    records++;
+                    total(c.season, c.player, c.points);
+                }
+                log.flush(); // one write for the batch, the points are safe once the process is gone
+                compactIfDue();
+            } catch (IOException e) { // the points stay in memory, the log misses them
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds points to the writer's copy of the totals
+     *
+     * @param season - the season
+     * @param player - the player
+     * @param points - points added
+     */
+    private void total(String season, String player, int points) {
+        Map<String, Integer> players = totals.get(season);
+        if (players == null) {
+            players = new HashMap<>();
+            totals.put(season, players);
+        }
+        Integer old = players.put(player, players.getOrDefault(player, 0) + points);
+        if (old == null)
+            keys++;
+    }
+
+    /**
+     * Compacts the log if it holds many more records than players
+     *
+     * @throws IOException - the new log can't be written, the old one is kept
+     */
+    private void compactIfDue() throws IOException {
+        if (logBytes > COMPACT_MIN_BYTES && records > COMPACT_RATIO * keys)
+            compact();
+    }
+
+    /**
+     * Rewrites the log with a record per player and season, the new log replaces the old one atomically
+     *
+     * @throws IOException - the new log can't be written, the old one is kept
+     */
+    private void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long bytes = 0;
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            for (Map.Entry<String, Map<String, Integer>> season : totals.entrySet()) {
+                for (Map.Entry<String, Integer> player : season.getValue().entrySet()) {
+                    bytes += append(out, season.getKey(), player.getKey(), player.getValue());
+                }
+            }
+            out.flush();
+            file.getFD().sync(); // on disk before it replaces the log
+        }
+        log.close();
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logBytes = bytes;
+            records = keys;
+        } finally { // the new log, or the old one again if it wasn't replaced
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile(), true), 64 * 1024));
+        }
+    }
+
+    /**
+     * Writes a record
+     *
+     * @param out    - the log
+     * @param season - the season
+     * @param player - the player
+     * @param points - the points
+     * @return - the record's size in bytes
+     * @throws IOException - write failed
+     */
+    private int append(DataOutputStream out, String season, String player, int points) throws IOException {
+        record.reset();
+        DataOutputStream r = new DataOutputStream(record);
+        r.writeUTF(season);
+        r.writeUTF(player);
+        r.writeInt(points);
+        crc.reset();
+        crc.update(record.toByteArray());
+        out.writeInt(record.size());
+        out.writeInt((int) crc.getValue());
+        record.writeTo(out);
+        return 8 + record.size();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * SendStats class
+ * What a single user was sent: frames, bytes and the time they waited before being written
+ * written by the user's writer only (its writer thread or event loop), read by anyone
+ */
+public class SendStats {
+    private final ServerMetrics metrics; // server wide totals, updated too
+    private volatile long frames; // frames written
+    private volatile long bytes; // bytes written
+    private volatile long latencyNanos; // sum of the frames send latencies
+    private volatile long maxLatencyNanos; // longest send latency
+
+    /**
+     * Creates a user's stats
+     *
+     * @param metrics - the server's metrics
+     */
+    public SendStats(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Counts a frame that was completely written, called by the user's writer only
+     * the send latency is the time from the frame's encoding until it was written
+     *
+     * @param message - the written frame
+     */
+    public void sent(EncodedMessage message) {
+        long latency = System.nanoTime() - message.created();
+        int length = message.length();
+        frames = frames + 1; // single writer, no lost updates
+        bytes = bytes + length;
+        latencyNanos = latencyNanos + latency;
+        if (latency > maxLatencyNanos)
+            maxLatencyNanos = latency;
+        metrics.sent(length, latency);
+    }
+
+    /**
+     * Counts a write to the user's socket, called by the user's writer only
+     */
+    public void wrote() {
+        metrics.wrote();
+    }
+
+    /**
+     * Returns the number of frames written
+     *
+     * @return - the frames
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of bytes written
+     *
+     * @return - the bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the mean send latency
+     *
+     * @return - the latency in nanoseconds, 0 if nothing was written
+     */
+    public long getMeanLatencyNanos() {
+        long n = frames;
+        return n == 0 ? 0 : latencyNanos / n;
+    }
+
+    /**
+     * Returns the longest send latency
+     *
+     * @return - the latency in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+}
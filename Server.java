@@ -1,125 +1,754 @@
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Server class
- * A chat room server side
- * uses TCP server, listens on port 7777
+ * A chat rooms server side
+ * uses TCP server, listens on port 7777 by default
+ * users log in to the lobby and may move to any named room,
+ * rooms are created on their first join and dropped when they empty
+ * several servers may form a cluster (see Cluster), their clients share the rooms and the usernames
+ * runs in one of three modes:
+ * THREAD - a UserManager platform thread for every connection
+ * VIRTUAL - a UserManager virtual thread for every connection (JDK 21+)
+ * NIO - a small fixed pool of selector threads serving all the connections
+ * new connections pass an admission control (see Admission) and every user's frames may be rate limited,
+ * frames over a user's limit are dropped before they reach its room
  *
  * @author - Eldar Erel
  * @version - 21.12.20
  */
 public class Server {
-    private final int MAX_USERS = 10; // the maximum users allowed to connect
-    private final Set<String> activeUsers = new TreeSet<>(); // current active users name
-    private final Set<UserManager> usersThreads = new HashSet<>(); // current active users threads
+    /**
+     * Connection handling modes
+     */
+    public enum Mode {
+        THREAD, // a blocking UserManager thread per user
+        VIRTUAL, // a blocking UserManager virtual thread per user
+        NIO // non blocking channels served by NioEventLoop threads
+    }
+
+    private final int PORT; // listening port
+    private final Mode MODE; // connection handling mode
+    private final int MAX_USERS; // the maximum users allowed to connect
+    private final int IO_THREADS; // number of event loops in NIO mode
+    private static final int HISTORY_LINES = 50; // lines a user joining a room gets
+    private static final long HISTORY_SEGMENT_BYTES = 64L * 1024 * 1024; // chat history segment size
+    private static final long HISTORY_RETAIN_BYTES = 1024L * 1024 * 1024; // chat history kept, by size
+    private static final long HISTORY_RETAIN_MILLIS = 7L * 24 * 60 * 60 * 1000; // chat history kept, by age
+    private static final AtomicBoolean CONSOLE = new AtomicBoolean(); // taken by the first server of the process to read commands
+    static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("[HH:mm:ss] - "); // console time prefix, thread safe, shared by the game engine
+    private static final long CLOCK_BASE = System.currentTimeMillis() * 1000000 - System.nanoTime(); // wall time of nanoTime() 0
+    private final int MAX_ROOM_NAME = 32; // longest room name
+    private final UserRegistry activeUsers = new UserRegistry(); // current active users
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>(); // room name -> room
+    private Cluster cluster; // the server's cluster, null when running alone
+    private ChatLog history; // the rooms chat history, null for none
+    private final ServerMetrics metrics = new ServerMetrics(this); // counters and latencies
+    private int metricsPort; // plain text metrics endpoint port, 0 for none
+    private volatile Closeable listener; // listening socket, closed by stop()
+    private final CountDownLatch bound = new CountDownLatch(1); // released once the server listens, or failed to
+    private volatile boolean stopped; // stop() was called
+    private int queueCapacity = 1024; // outbound queue size of every user
+    private OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST; // what to do when a user's queue is full
+    private long blockMillis = 1000; // longest wait of a sender in BLOCK overflow policy
+    private long coalesceNanos; // how long a user's writer waits for more data before writing, 0 for no wait
+    private int coalesceBytes = 64 * 1024; // most data written to a user at once
+    private Admission admission; // decides on the new connections
+    private double messageRate; // frames per second a user may send, 0 for no limit
+    private int messageBurst; // frames a user may send at once
+
+    /**
+     * Creates a server on port 7777
+     * with a thread per user and 10 users at most
+     */
+    public Server() {
+        this(7777, Mode.THREAD, 10, 1);
+    }
+
+    /**
+     * Creates a server
+     *
+     * @param port      - listening port
+     * @param mode      - connection handling mode
+     * @param maxUsers  - the maximum users allowed to connect
+     * @param ioThreads - number of event loops, used in NIO mode only
+     */
+    public Server(int port, Mode mode, int maxUsers, int ioThreads) {
+        PORT = port;
+        MODE = mode;
+        MAX_USERS = maxUsers;
+        IO_THREADS = Math.max(1, ioThreads);
+        admission = new Admission(maxUsers, 0, 0);
+    }
+
+    /**
+     * Sets the admission control of new connections, must be called before run()
+     * the server's maximum users caps its open connections, logged in or not
+     *
+     * @param maxPerAddress    - open connections allowed from one address, 0 for no limit
+     * @param acceptsPerSecond - connections accepted per second, a second's worth may come at once, 0 for no limit
+     */
+    public void setAdmission(int maxPerAddress, int acceptsPerSecond) {
+        admission = new Admission(MAX_USERS, maxPerAddress, acceptsPerSecond);
+    }
+
+    /**
+     * Limits the frames every user may send, must be called before run()
+     * frames over the limit are dropped, the user's room never sees them
+     *
+     * @param perSecond - frames per second, 0 for no limit
+     * @param burst     - frames sent at once
+     */
+    public void setMessageRate(double perSecond, int burst) {
+        if (perSecond < 0 || (perSecond > 0 && burst <= 0))
+            throw new IllegalArgumentException("bad message rate");
+        messageRate = perSecond;
+        messageBurst = burst;
+    }
+
+    /**
+     * Creates a user's limit on the frames it sends
+     *
+     * @return - the user's token bucket, null for no limit
+     */
+    public RateLimiter newMessageLimiter() {
+        return messageRate > 0 ? new RateLimiter(messageRate, messageBurst) : null;
+    }
+
+    /**
+     * Sets the outbound queues of the users, must be called before run()
+     *
+     * @param capacity    - the maximum number of data waiting to be written to a user
+     * @param overflow    - what to do when a user's queue is full
+     * @param blockMillis - longest wait of a sender in BLOCK policy, the slow user is disconnected after it
+     */
+    public void setOutboundQueues(int capacity, OutboundQueue.Overflow overflow, long blockMillis) {
+        queueCapacity = capacity;
+        this.overflow = overflow;
+        this.blockMillis = blockMillis;
+    }
+
+    /**
+     * Sets how the data sent to a user is coalesced into writes, must be called before run()
+     * a user's writer writes everything queued at once, up to a size, in a single write,
+     * and may wait a little for more data, trading latency for fewer system calls and packets
+     *
+     * @param windowMicros - how long a writer waits for more data after the first, 0 writes what is queued right away
+     * @param maxBytes     - most data written at once, a write is done as soon as this much is queued
+     */
+    public void setWriteCoalescing(long windowMicros, int maxBytes) {
+        if (windowMicros < 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("bad write coalescing");
+        coalesceNanos = windowMicros * 1000;
+        coalesceBytes = maxBytes;
+    }
+
+    /**
+     * Returns how long a user's writer waits for more data before writing
+     *
+     * @return - the wait in nanoseconds, 0 for none
+     */
+    public long getCoalesceNanos() {
+        return coalesceNanos;
+    }
+
+    /**
+     * Returns the most data written to a user at once
+     *
+     * @return - the size in bytes
+     */
+    public int getCoalesceBytes() {
+        return coalesceBytes;
+    }
+
+    /**
+     * Keeps the rooms chat history, users joining a room get its last lines, must be called before run()
+     * the log is closed when the server stops
+     *
+     * @param log - the history, null for none
+     */
+    public void setHistory(ChatLog log) {
+        history = log;
+    }
+
+    /**
+     * Sets the plain text metrics endpoint, must be called before run()
+     *
+     * @param port - the endpoint's port, 0 for none
+     */
+    public void setMetricsPort(int port) {
+        metricsPort = port;
+    }
+
+    /**
+     * Returns the server's metrics
+     *
+     * @return - the metrics
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the connection handling mode
+     *
+     * @return - the mode
+     */
+    public Mode getMode() {
+        return MODE;
+    }
+
+    /**
+     * Returns the number of event loops used in NIO mode
+     *
+     * @return - the number of loops
+     */
+    public int getIoThreads() {
+        return IO_THREADS;
+    }
+
+    /**
+     * Returns the number of users, including the ones still logging in
+     *
+     * @return - the number of users
+     */
+    public int getUsersCount() {
+        return activeUsers.size();
+    }
+
+    /**
+     * Returns the number of open connections, logged in or not
+     *
+     * @return - open connections count
+     */
+    public int getConnectionsCount() {
+        return admission.getOpen();
+    }
+
+    /**
+     * Returns a live view of the users connections
+     *
+     * @return - the connections
+     */
+    public Collection<UserConnection> users() {
+        return activeUsers.connections();
+    }
+
+    /**
+     * Creates an outbound queue for a new user
+     *
+     * @param <T> - type of the queued data
+     * @return - the queue
+     */
+    public <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(queueCapacity, overflow, blockMillis);
+    }
+
+    /**
+     * Makes the server a node of a cluster, must be called before run()
+     *
+     * @param transport - the transport to the other nodes
+     */
+    public void joinCluster(ClusterTransport transport) {
+        cluster = new Cluster(this, transport);
+    }
 
     /**
      * Starts the server
-     * Listens on port 7777
+     * Listens on the server's port
      */
     public void run() {
+        metrics.start(PORT, metricsPort);
         try {
-            final ServerSocket srv = new ServerSocket(7777);
-            console("Server is running.");
-            console("Type - stop to exit.");
-            console("Max connection allowed: " + MAX_USERS);
-            new Thread(new Runnable() {
-                @Override
-                public void run() { // exiting when typing "exit"
-                    Scanner scan = new Scanner(System.in);
-                    while (!scan.next().equals("stop")) ;
+            if (cluster != null)
+                cluster.start();
+            if (MODE == Mode.NIO)
+                runNio();
+            else
+                runThreads(MODE == Mode.VIRTUAL ? virtualThreads() : platformThreads());
+        } catch (BindException e) {
+            console("Server already Running.");
+        } catch (IOException e) {
+            if (!stopped) // closed by stop()
+                e.printStackTrace();
+        } finally {
+            bound.countDown(); // failed to bind, nobody waits for it
+            if (cluster != null)
+                cluster.close();
+            if (history != null)
+                history.close();
+            metrics.stop();
+        }
+    }
+
+    /**
+     * Waits until the server listens, for a server run on another thread
+     *
+     * @param millis - the longest wait in milliseconds
+     * @return - true if the server listens, false if it failed to bind or didn't in time
+     * @throws InterruptedException - interrupted while waiting
+     */
+    public boolean awaitBound(long millis) throws InterruptedException {
+        return bound.await(millis, TimeUnit.MILLISECONDS) && listener != null;
+    }
+
+    /**
+     * Stops accepting new connections
+     */
+    public void stop() {
+        stopped = true;
+        Closeable srv = listener;
+        if (srv == null)
+            return;
+        try {
+            srv.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Accepts connections and starts a UserManager thread for each of them
+     *
+     * @param threads - creates the users threads
+     * @throws IOException - couldn't open the server socket
+     */
+    private void runThreads(ThreadFactory threads) throws IOException {
+        final ServerSocket srv = new ServerSocket(PORT);
+        started(srv);
+        while (true) {
+            srv.setSoTimeout(10000000);
+            Socket socket = srv.accept();
+            if (!admit(socket.getInetAddress())) {
+                socket.close();
+                continue;
+            }
+            UserManager user = new UserManager(socket, this, threads);
+            threads.newThread(user).start();
+        }
+    }
+
+    /**
+     * Creates a factory of platform threads for UserManagers
+     *
+     * @return - the factory
+     */
+    private ThreadFactory platformThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "user-" + count.getAndIncrement());
+            }
+        };
+    }
+
+    /**
+     * Creates a factory of virtual threads for UserManagers
+     * looked up by reflection so the server still builds and runs on older JDKs,
+     * where it falls back to platform threads
+     *
+     * @return - the factory
+     */
+    private ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "user-", 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            console("Virtual threads need JDK 21 or newer, using platform threads.");
+            return platformThreads();
+        }
+    }
+
+    /**
+     * Accepts connections and spreads them over a fixed pool of event loops
+     *
+     * @throws IOException - couldn't open the server channel or the selectors
+     */
+    private void runNio() throws IOException {
+        final ServerSocketChannel srv = ServerSocketChannel.open();
+        srv.bind(new InetSocketAddress(PORT), 1024);
+        NioEventLoop[] loops = new NioEventLoop[IO_THREADS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, i);
+            loops[i].start();
+        }
+        started(srv);
+        try {
+            int next = 0;
+            while (true) {
+                SocketChannel channel = srv.accept(); // blocking accept, the loops do the rest
+                if (!admit(channel.socket().getInetAddress())) {
+                    channel.close();
+                    continue;
+                }
+                loops[next++ % loops.length].register(channel);
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Decides on a new connection, an admitted one holds a slot until release()
+     * the slot is taken atomically, so concurrent connections and logins can't pass the caps
+     *
+     * @param address - the client's address
+     * @return - true if admitted, false if it must be closed
+     */
+    private boolean admit(InetAddress address) {
+        Admission.Verdict verdict = admission.admit(address);
+        if (verdict != Admission.Verdict.ADMITTED) {
+            metrics.rejected();
+            console("Rejecting " + address.getHostAddress() + " (" + verdict + ") - Total connection: " + admission.getOpen());
+            return false;
+        }
+        metrics.accepted();
+        console("New Connection - Total connection: " + admission.getOpen());
+        return true;
+    }
+
+    /**
+     * Frees a closed connection's slot, called once for every admitted connection
+     *
+     * @param address - the client's address
+     */
+    public void release(InetAddress address) {
+        admission.release(address);
+    }
+
+    /**
+     * Prompts the server's details and waits for the stop command
+     *
+     * @param srv - the listening socket, closed on stop
+     */
+    private void started(final Closeable srv) {
+        listener = srv;
+        bound.countDown();
+        console("Server is running (" + MODE + " mode).");
+        console("Type - stop to exit, users to list the users queues, metrics to print the metrics.");
+        console("Max connection allowed: " + MAX_USERS);
+        if (messageRate > 0)
+            console("Messages per user: " + messageRate + "/s, " + messageBurst + " at once");
+        console("Outbound queues: " + queueCapacity + " (" + overflow + ")");
+        if (!CONSOLE.compareAndSet(false, true)) // another node of the process reads the commands
+            return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() { // exiting when typing "exit"
+                Scanner scan = new Scanner(System.in);
+                while (scan.hasNext()) { // no console input, running until killed
+                    String command = scan.next();
+                    if (command.equals("users"))
+                        printUsers();
+                    if (command.equals("metrics"))
+                        System.out.print(metrics.scrape(false));
+                    if (!command.equals("stop"))
+                        continue;
                     try {
                         srv.close();
                         System.exit(0);
                     } catch (IOException ignored) {
                     }
                 }
-            }).start();
-            while (true) {
-                srv.setSoTimeout(10000000);
-                Socket socket = srv.accept();
-                console("New Connection - Total connection: " + (activeUsers.size() + 1));
-                if (activeUsers.size() == MAX_USERS) // no more connections allowed
-                {
-                    console("Users OverLoad, Rejecting!");
-                    socket.close();
-                    console("Total connection: " + activeUsers.size());
-                    continue;
-                }
-                UserManager user = new UserManager(socket, this);
-                user.start();
             }
-        } catch (BindException e) {
-            console("Server already Running.");
-        } catch (IOException e) {
-            e.printStackTrace();
+        }).start();
+    }
+
+    /**
+     * Prompts every user's room, outbound queue depth, dropped data and send stats
+     */
+    private void printUsers() {
+        console("Rooms: " + rooms.size());
+        for (UserConnection u : activeUsers.connections()) {
+            Room room = u.getRoom();
+            SendStats s = u.getSendStats();
+            console(u.getUserName() + " (" + (room == null ? "-" : room.getName()) + ") - queued: " + u.getQueueDepth() + ", dropped: " + u.getDroppedMessages()
+                    + ", sent: " + s.getFrames() + " frames / " + s.getBytes() + " bytes, latency mean " + s.getMeanLatencyNanos() / 1000 + "us max " + s.getMaxLatencyNanos() / 1000 + "us");
         }
     }
 
     /**
      * Adds a new user
+     * in a cluster the name is claimed from the node owning it, so the answer may come later
      *
      * @param user     - user connection manager
      * @param userName - user name
-     * @return - true if added successfully , false otherwise
+     * @return - completes with true if added successfully , false otherwise
      */
-    public boolean addUser(UserManager user, String userName) {
-        if (user == null || userName == null)
-            return false;
-        if (!activeUsers.add(userName))
-            return false;
-        usersThreads.add(user);
-        return true;
+    public CompletableFuture<Boolean> addUser(final UserConnection user, final String userName) {
+        if (user == null || userName == null || userName.isEmpty())
+            return CompletableFuture.completedFuture(false);
+        if (cluster == null)
+            return CompletableFuture.completedFuture(activeUsers.claim(userName, user));
+        return cluster.claim(userName).thenApply(new Function<Boolean, Boolean>() {
+            @Override
+            public Boolean apply(Boolean claimed) {
+                if (!claimed)
+                    return false;
+                if (activeUsers.claim(userName, user))
+                    return true;
+                cluster.release(userName);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Deals with a frame's body received from a logged in user
+     * frames over the user's message rate are dropped first, before any work is done on them
+     * chat lines, by far the most common frames, are restamped with the sender's name and the receive stamp
+     * straight from the read bytes and never decoded, anything else is decoded and relayed
+     *
+     * @param user   - the sending user
+     * @param sender - the user's encoded name
+     * @param body   - the frame's body (everything after the length prefix)
+     * @throws ProtocolException - malformed frame
+     */
+    public void relay(UserConnection user, byte[] sender, ByteBuffer body) throws ProtocolException {
+        RateLimiter limit = user.getMessageLimiter();
+        if (limit != null && !limit.tryAcquire()) { // sending too fast, only the sender pays for it
+            metrics.throttled();
+            return;
+        }
+        long time = clock(); // stamped before anything else, as close to the read as possible
+        Room room = user.getRoom();
+        if (room == null) {
+            Frame frame = Protocol.decode(body);
+            if (frame != null)
+                relay(user, frame);
+            return;
+        }
+        byte[] chat = Protocol.stampChat(body, sender, room.nextSeq(), time);
+        if (chat == null) { // numbered anyway, the room's numbers only need to grow
+            Frame frame = Protocol.decode(body);
+            if (frame != null)
+                relay(user, frame);
+            return;
+        }
+        metrics.messageIn();
+        broadcast(room, EncodedMessage.wrap(chat));
     }
 
     /**
-     * Sends data to all the active users
+     * Deals with a frame received from a logged in user
+     * chat lines and questions are stamped with their receive order and time and sent to the user's room,
+     * a resync request is answered with the room's users list,
+     * scores are dropped, a score names its player and not its sender, so any user could forge one
      *
-     * @param data - the data to send
+     * @param user  - the sending user
+     * @param frame - the frame
      */
-    public void sendAll(Object data) {
-        for (UserManager u : usersThreads) {
-            u.send(data);
+    public void relay(UserConnection user, Frame frame) {
+        metrics.messageIn();
+        Room room = user.getRoom();
+        switch (frame.getType()) {
+            case CHAT:
+            case QUESTION:
+                if (room != null)
+                    broadcast(room, frame.stamped(user.getUserName(), room.nextSeq(), clock())); // with the sender's name
+                break;
+            case RESYNC:
+                if (room != null)
+                    room.sendUsersList(user);
+                break;
+            case JOIN_ROOM:
+                joinRoom(user, frame.getText());
+                break;
+            case LEAVE_ROOM:
+                joinRoom(user, Protocol.LOBBY);
+                break;
+            default: // not allowed from clients
+                break;
         }
     }
 
+    /**
+     * Sends a frame to a room's members on all the nodes
+     * the frame is encoded once, for the local members and the other nodes
+     *
+     * @param room  - the room
+     * @param frame - the frame
+     */
+    private void broadcast(Room room, Frame frame) {
+        broadcast(room, EncodedMessage.of(frame));
+    }
+
+    /**
+     * Sends an encoded frame to a room's members on all the nodes
+     *
+     * @param room    - the room
+     * @param message - the encoded frame
+     */
+    private void broadcast(Room room, EncodedMessage message) {
+        long start = System.nanoTime();
+        room.publish(message); // logged in the history too
+        metrics.broadcast(System.nanoTime() - start);
+        if (cluster != null)
+            cluster.publish(room.getName(), message);
+    }
+
     /**
      * Removes a user
+     * the user leaves its room, the room's members get a LEAVE delta
      *
      * @param userManager - user connection manager
      * @param userName    - user name
+     * @return - true if the user was removed, false if it never logged in
      */
-    public void removeUser(UserManager userManager, String userName) {
-        if (userName != null)
-            activeUsers.remove(userName);
-        if (userManager != null)
-            usersThreads.remove(userManager);
+    public boolean removeUser(UserConnection userManager, String userName) {
+        if (userName == null || userManager == null)
+            return false;
+        leaveRoom(userManager);
+        if (!activeUsers.release(userName, userManager))
+            return false;
+        if (cluster != null)
+            cluster.release(userName);
         console("Users disconnected, Total Connection: " + activeUsers.size());
+        return true;
     }
 
     /**
-     * Announce to all active user when a new user joined the room
+     * Announce to the lobby when a new user joined
+     * the new user gets the lobby's users list once, everybody else only the JOIN delta,
+     * must be called after the user was approved
      *
      * @param user - new user connection manager
      * @param name - new user name
      */
-    public void announceNewConnection(UserManager user, String name) {
-        for (UserManager u : usersThreads) {
-            if (u != user)
-                u.send(name + " Has Joined The Room.");
+    public void announceNewConnection(UserConnection user, String name) {
+        joinRoom(user, Protocol.LOBBY);
+    }
+
+    /**
+     * Moves a user to a room, leaving its current room
+     * the room is created if it doesn't exist
+     *
+     * @param user     - the user
+     * @param roomName - the room name
+     * @return - true if the user is in the room, false if the name isn't valid
+     */
+    public boolean joinRoom(UserConnection user, String roomName) {
+        if (roomName == null || roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME)
+            return false;
+        Room current = user.getRoom();
+        if (current != null && current.getName().equals(roomName))
+            return true;
+        leaveRoom(user);
+        Room room;
+        while (!(room = room(roomName)).join(user.getUserName(), user)) {
+            rooms.remove(roomName, room); // emptied meanwhile, retry with a new room
+        }
+        if (cluster != null)
+            cluster.publishJoin(roomName, user.getUserName());
+        return true;
+    }
+
+    /**
+     * Takes a user out of its room, dropping the room if it's left empty
+     *
+     * @param user - the user
+     */
+    private void leaveRoom(UserConnection user) {
+        Room room = user.getRoom();
+        if (room == null)
+            return;
+        user.setRoom(null);
+        if (room.leave(user.getUserName(), user))
+            rooms.remove(room.getName(), room);
+        if (cluster != null)
+            cluster.publishLeave(room.getName(), user.getUserName());
+    }
+
+    /**
+     * Returns a room, creating it if it doesn't exist
+     *
+     * @param roomName - the room name
+     * @return - the room
+     */
+    private Room room(String roomName) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            Room created = new Room(roomName, history);
+            room = rooms.putIfAbsent(roomName, created);
+            if (room == null)
+                room = created;
         }
+        return room;
     }
 
     /**
-     * Sends a list of the active users
+     * Returns a live view of the open rooms
+     *
+     * @return - the rooms
+     */
+    public Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    /**
+     * Adds a user of another cluster node to a room's users list
+     *
+     * @param roomName - the room name
+     * @param name     - the username
+     */
+    public void remoteJoin(String roomName, String name) {
+        Room room;
+        while (!(room = room(roomName)).joinRemote(name)) {
+            rooms.remove(roomName, room); // emptied meanwhile, retry with a new room
+        }
+    }
+
+    /**
+     * Removes a user of another cluster node from a room's users list
+     *
+     * @param roomName - the room name
+     * @param name     - the username
      */
-    public void sendUsersList() {
-        sendAll(activeUsers.toArray());
+    public void remoteLeave(String roomName, String name) {
+        Room room = rooms.get(roomName);
+        if (room != null && room.leaveRemote(name))
+            rooms.remove(roomName, room);
+    }
+
+    /**
+     * Delivers a broadcast of another cluster node to a room's local members
+     *
+     * @param roomName - the room name
+     * @param message  - the encoded frame
+     */
+    public void remoteBroadcast(String roomName, EncodedMessage message) {
+        Room room = rooms.get(roomName);
+        if (room == null)
+            return;
+        long start = System.nanoTime();
+        room.publish(message); // every node keeps the whole history of its rooms
+        metrics.broadcast(System.nanoTime() - start);
     }
 
     /**
@@ -128,14 +757,72 @@ public class Server {
      * @param message - the message
      */
     public void console(String message) {
-        SimpleDateFormat fo = new SimpleDateFormat("[hh:mm:ss] - ");
-        Date date = new Date();
-        System.out.println(fo.format(date) + message);
+        System.out.println(TIME.format(LocalTime.now()) + message);
+    }
 
+    /**
+     * Returns the receive time stamped on chat lines and questions
+     * a monotonic clock, never set back, anchored to the wall clock when the class was loaded,
+     * so stamps of the nodes of a cluster are comparable as long as their wall clocks agree
+     *
+     * @return - nanoseconds since the epoch
+     */
+    public static long clock() {
+        return CLOCK_BASE + System.nanoTime();
     }
 
+    /**
+     * Runs the server
+     * usage: Server [thread|virtual|nio] [port] [max users] [io threads] [nodes] [metrics port] [history dir]
+     * [max per address] [accepts per second] [messages per second]
+     * more than one node runs an in process cluster, node i listens on port + i (and metrics port + i)
+     * and keeps its history in the history dir's node-i, a history dir of - keeps none,
+     * 0 for any of the last three is no limit, a user may send two seconds worth of messages at once
+     *
+     * @param args - optional mode, port, max users, number of event loops, number of cluster nodes, metrics port,
+     *             chat history directory, connections per client address, accepted connections per second
+     *             and messages per second of a user
+     */
     public static void main(String[] args) {
-        Server srv = new Server();
-        srv.run();
+        Mode mode = args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.THREAD;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+        int maxUsers = args.length > 2 ? Integer.parseInt(args[2]) : (mode == Mode.THREAD ? 10 : 100000);
+        int ioThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int nodes = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int metricsPort = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        String historyDir = args.length > 6 && !args[6].equals("-") ? args[6] : null;
+        int maxPerAddress = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+        int acceptsPerSecond = args.length > 8 ? Integer.parseInt(args[8]) : 0;
+        double messagesPerSecond = args.length > 9 ? Double.parseDouble(args[9]) : 0;
+        Server[] servers = new Server[Math.max(1, nodes)];
+        LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new Server(port + i, mode, maxUsers, ioThreads);
+            servers[i].setAdmission(maxPerAddress, acceptsPerSecond);
+            servers[i].setMessageRate(messagesPerSecond, (int) Math.max(1, Math.ceil(messagesPerSecond * 2)));
+            if (metricsPort > 0)
+                servers[i].setMetricsPort(metricsPort + i);
+            if (historyDir != null) {
+                try {
+                    servers[i].setHistory(ChatLog.open(servers.length > 1 ? historyDir + "/node-" + i : historyDir,
+                            HISTORY_LINES, HISTORY_SEGMENT_BYTES, HISTORY_RETAIN_BYTES, HISTORY_RETAIN_MILLIS, true));
+                } catch (IOException e) {
+                    System.out.println("Could not open the chat history: " + e.getMessage());
+                    return;
+                }
+            }
+            if (servers.length > 1)
+                servers[i].joinCluster(hub.join("node-" + i)); // every node joins the hub before any starts
+        }
+        for (int i = 1; i < servers.length; i++) {
+            final Server node = servers[i];
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    node.run();
+                }
+            }, "node-" + i).start();
+        }
+        servers[0].run();
     }
 }
@@ -0,0 +1,413 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics class
+ * The server's counters and latency histograms, exposed over JMX and as a plain text scrape
+ * recorded on the hot path with LongAdders and striped histograms, never locking or allocating
+ * JMX name: chat:type=Server,port=PORT
+ * scrape: http://host:METRICS_PORT/metrics, add ?users for every user's send stats
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final Server server; // the measured server
+    private final LongAdder accepted = new LongAdder(); // connections accepted
+    private final LongAdder rejected = new LongAdder(); // connections rejected by the admission control
+    private final LongAdder loginRetries = new LongAdder(); // logins not approved, the client must try again
+    private final LongAdder messagesIn = new LongAdder(); // frames from logged in users
+    private final LongAdder throttled = new LongAdder(); // frames dropped, their users sent too fast
+    private final LongAdder messagesOut = new LongAdder(); // frames written to users
+    private final LongAdder bytesOut = new LongAdder(); // bytes written to users
+    private final LongAdder writesOut = new LongAdder(); // writes to users sockets, a write may carry many frames
+    private final AtomicInteger userThreads = new AtomicInteger(); // live UserManager threads, readers and writers
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram(); // time to hand a broadcast to all of a room's members
+    private final LatencyHistogram sendLatency = new LatencyHistogram(); // time from a frame's encoding until written to a user
+    private volatile long inPerSecond; // frames in during the last second
+    private volatile long outPerSecond; // frames out during the last second
+    private long lastIn; // frames in at the last sample, sampler only
+    private long lastOut; // frames out at the last sample, sampler only
+    private ScheduledExecutorService sampler; // computes the per second rates
+    private HttpServer http; // scrape endpoint, null if not started
+    private ObjectName name; // JMX name, null if not registered
+
+    /**
+     * Creates a server's metrics
+     *
+     * @param server - the server
+     */
+    public ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts the rates sampler, registers the JMX bean and starts the scrape endpoint
+     *
+     * @param port     - the server's port, part of the JMX name
+     * @param httpPort - scrape endpoint port, 0 for none
+     */
+    public void start(int port, int httpPort) {
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-" + port);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long in = messagesIn.sum();
+                long out = messagesOut.sum();
+                inPerSecond = in - lastIn;
+                outPerSecond = out - lastOut;
+                lastIn = in;
+                lastOut = out;
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        try {
+            name = new ObjectName("chat:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (Exception e) {
+            name = null;
+            server.console("Couldn't register the JMX metrics: " + e);
+        }
+        if (httpPort <= 0)
+            return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(httpPort), 0);
+            http.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    String query = exchange.getRequestURI().getQuery();
+                    byte[] body = scrape(query != null && query.contains("users")).getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            });
+            http.start();
+            server.console("Metrics on http://localhost:" + httpPort + "/metrics");
+        } catch (IOException e) {
+            http = null;
+            server.console("Couldn't start the metrics endpoint: " + e);
+        }
+    }
+
+    /**
+     * Stops the sampler, the JMX bean and the scrape endpoint
+     */
+    public void stop() {
+        if (sampler != null)
+            sampler.shutdown();
+        if (http != null)
+            http.stop(0);
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Counts an accepted connection
+     */
+    public void accepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Counts a connection rejected by the admission control
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Counts a login that wasn't approved
+     */
+    public void loginRetry() {
+        loginRetries.increment();
+    }
+
+    /**
+     * Counts a frame from a logged in user
+     */
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Counts a frame dropped because its user sent too fast
+     */
+    public void throttled() {
+        throttled.increment();
+    }
+
+    /**
+     * Counts a room broadcast
+     *
+     * @param nanos - time it took to hand the frame to all the members
+     */
+    public void broadcast(long nanos) {
+        broadcastLatency.record(nanos);
+    }
+
+    /**
+     * Counts a frame written to a user
+     *
+     * @param bytes   - the frame's length
+     * @param latency - nanoseconds from the frame's encoding until written
+     */
+    public void sent(int bytes, long latency) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        sendLatency.record(latency);
+    }
+
+    /**
+     * Counts a write to a user's socket
+     */
+    public void wrote() {
+        writesOut.increment();
+    }
+
+    /**
+     * Counts a UserManager thread starting
+     */
+    public void userThreadStarted() {
+        userThreads.incrementAndGet();
+    }
+
+    /**
+     * Counts a UserManager thread ending
+     */
+    public void userThreadStopped() {
+        userThreads.decrementAndGet();
+    }
+
+    /**
+     * Formats the metrics as plain text, one "name value" line each (Prometheus text format)
+     *
+     * @param users - true to add every user's send stats
+     * @return - the text
+     */
+    public String scrape(boolean users) {
+        StringBuilder sb = new StringBuilder(2048);
+        line(sb, "chat_connections_accepted_total", "counter", getAcceptedConnections());
+        line(sb, "chat_connections_rejected_total", "counter", getRejectedConnections());
+        line(sb, "chat_login_retries_total", "counter", getLoginRetries());
+        line(sb, "chat_messages_in_total", "counter", getMessagesIn());
+        line(sb, "chat_messages_throttled_total", "counter", getThrottledMessages());
+        line(sb, "chat_messages_out_total", "counter", getMessagesOut());
+        line(sb, "chat_bytes_out_total", "counter", getBytesOut());
+        line(sb, "chat_writes_out_total", "counter", getWritesOut());
+        line(sb, "chat_messages_in_per_second", "gauge", getMessagesInPerSecond());
+        line(sb, "chat_messages_out_per_second", "gauge", getMessagesOutPerSecond());
+        line(sb, "chat_connections", "gauge", getOpenConnections());
+        line(sb, "chat_users", "gauge", getActiveUsers());
+        line(sb, "chat_rooms", "gauge", getRooms());
+        line(sb, "chat_user_threads", "gauge", getUserThreads());
+        line(sb, "chat_io_threads", "gauge", getIoThreads());
+        line(sb, "chat_queued_messages", "gauge", getQueuedMessages());
+        line(sb, "chat_dropped_messages_total", "counter", getDroppedMessages());
+        summary(sb, "chat_broadcast_latency_seconds", broadcastLatency);
+        summary(sb, "chat_send_latency_seconds", sendLatency);
+        if (users) {
+            for (UserConnection u : server.users()) {
+                SendStats s = u.getSendStats();
+                String label = "{user=\"" + escape(u.getUserName()) + "\"}";
+                sb.append("chat_user_frames_sent_total").append(label).append(' ').append(s.getFrames()).append('\n');
+                sb.append("chat_user_bytes_sent_total").append(label).append(' ').append(s.getBytes()).append('\n');
+                sb.append("chat_user_send_latency_mean_seconds").append(label).append(' ').append(s.getMeanLatencyNanos() / 1e9).append('\n');
+                sb.append("chat_user_send_latency_max_seconds").append(label).append(' ').append(s.getMaxLatencyNanos() / 1e9).append('\n');
+                sb.append("chat_user_queued_messages").append(label).append(' ').append(u.getQueueDepth()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a metric
+     *
+     * @param sb    - the text
+     * @param name  - metric name
+     * @param type  - counter or gauge
+     * @param value - the value
+     */
+    private static void line(StringBuilder sb, String name, String type, long value) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a histogram's quantiles, count and sum
+     *
+     * @param sb   - the text
+     * @param name - metric name
+     * @param h    - the histogram
+     */
+    private static void summary(StringBuilder sb, String name, LatencyHistogram h) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (String q : new String[]{"0.5", "0.99", "0.999"}) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.percentile(Double.parseDouble(q)) / 1e9).append('\n');
+        }
+        long count = h.count();
+        sb.append(name).append("_count ").append(count).append('\n');
+        sb.append(name).append("_sum ").append(h.mean() * count / 1e9).append('\n');
+    }
+
+    /**
+     * Escapes a label value
+     *
+     * @param s - the value
+     * @return - the escaped value
+     */
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String getMode() {
+        return server.getMode().name();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getLoginRetries() {
+        return loginRetries.sum();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttled.sum();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return server.getConnectionsCount();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getWritesOut() {
+        return writesOut.sum();
+    }
+
+    @Override
+    public long getMessagesInPerSecond() {
+        return inPerSecond;
+    }
+
+    @Override
+    public long getMessagesOutPerSecond() {
+        return outPerSecond;
+    }
+
+    @Override
+    public int getActiveUsers() {
+        return server.getUsersCount();
+    }
+
+    @Override
+    public int getRooms() {
+        return server.rooms().size();
+    }
+
+    @Override
+    public int getUserThreads() {
+        return userThreads.get();
+    }
+
+    @Override
+    public int getIoThreads() {
+        return server.getMode() == Server.Mode.NIO ? server.getIoThreads() : 0;
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long queued = 0;
+        for (UserConnection u : server.users()) {
+            queued += u.getQueueDepth();
+        }
+        return queued;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (UserConnection u : server.users()) {
+            dropped += u.getDroppedMessages();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getBroadcastLatencyP50Micros() {
+        return broadcastLatency.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getBroadcastLatencyP99Micros() {
+        return broadcastLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getBroadcastLatencyP999Micros() {
+        return broadcastLatency.percentile(0.999) / 1000;
+    }
+
+    @Override
+    public long getSendLatencyP50Micros() {
+        return sendLatency.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getSendLatencyP99Micros() {
+        return sendLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getSendLatencyP999Micros() {
+        return sendLatency.percentile(0.999) / 1000;
+    }
+}
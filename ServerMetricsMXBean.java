@@ -0,0 +1,54 @@
+/**
+ * ServerMetricsMXBean interface
+ * The server's metrics as seen over JMX (see ServerMetrics)
+ * counters are totals since the server started, latencies are in microseconds
+ */
+public interface ServerMetricsMXBean {
+    String getMode();
+
+    long getAcceptedConnections();
+
+    long getRejectedConnections();
+
+    long getLoginRetries();
+
+    long getThrottledMessages();
+
+    int getOpenConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesOut();
+
+    long getWritesOut();
+
+    long getMessagesInPerSecond();
+
+    long getMessagesOutPerSecond();
+
+    int getActiveUsers();
+
+    int getRooms();
+
+    int getUserThreads();
+
+    int getIoThreads();
+
+    long getQueuedMessages();
+
+    long getDroppedMessages();
+
+    long getBroadcastLatencyP50Micros();
+
+    long getBroadcastLatencyP99Micros();
+
+    long getBroadcastLatencyP999Micros();
+
+    long getSendLatencyP50Micros();
+
+    long getSendLatencyP99Micros();
+
+    long getSendLatencyP999Micros();
+}
@@ -0,0 +1,224 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ServerModeBenchmark class
+ * Compares the server's connection modes under the same load
+ * for every mode: starts an in-process server, logs in the same number of idle users,
+ * broadcasts messages from one probe user and prompts the time, threads and heap it took
+ * usage: ServerModeBenchmark [clients] [messages] [modes...] [window=micros]
+ * window sets the servers write coalescing window (see Server.setWriteCoalescing)
+ */
+public class ServerModeBenchmark {
+    private final int LOGIN_THREADS = 16; // threads logging in the idle users
+    private final int FIRST_PORT = 7790; // every mode gets its own port
+    private final int clients; // number of idle users
+    private final int messages; // number of messages the probe broadcasts
+    private long windowMicros; // servers write coalescing window
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    /**
+     * Creates a benchmark
+     *
+     * @param clients  - number of idle users
+     * @param messages - number of messages to broadcast
+     */
+    public ServerModeBenchmark(int clients, int messages) {
+        this.clients = clients;
+        this.messages = messages;
+    }
+
+    /**
+     * Runs the benchmark on a single mode
+     *
+     * @param mode - the server's mode
+     * @param port - the server's port
+     * @throws Exception - the run failed
+     */
+    public void run(Server.Mode mode, int port) throws Exception {
+        final Server server = new Server(port, mode, clients + 1, Runtime.getRuntime().availableProcessors());
+        server.setWriteCoalescing(windowMicros, 64 * 1024);
+        Thread srv = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        }, "server-" + mode);
+        srv.setDaemon(true);
+        srv.start();
+        if (!server.awaitBound(5000))
+            throw new IllegalStateException("the " + mode + " server didn't start");
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeap();
+        final Selector drain = Selector.open(); // idle users just drop what they receive
+        List<SocketChannel> users = new ArrayList<>();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(LOGIN_THREADS);
+        List<Future<SocketChannel>> logins = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final String name = "user" + i;
+            final int p = port;
+            logins.add(pool.submit(new Callable<SocketChannel>() {
+                @Override
+                public SocketChannel call() throws IOException {
+                    return login(p, name);
+                }
+            }));
+        }
+        for (Future<SocketChannel> f : logins) {
+            SocketChannel channel = f.get();
+            channel.configureBlocking(false);
+            channel.register(drain, SelectionKey.OP_READ);
+            users.add(channel);
+        }
+        pool.shutdown();
+        long loginMillis = (System.nanoTime() - start) / 1000000;
+        Thread drainer = drainer(drain);
+        int threadsAfter = threads.getThreadCount();
+        long heapAfter = usedHeap();
+        long framesBefore = server.metrics().getMessagesOut();
+        long writesBefore = server.metrics().getWritesOut();
+        long broadcastMillis = broadcast(port);
+        System.out.printf("%-8s clients=%d login=%dms threads=+%d heap=+%dKB broadcast(%d msgs)=%dms frames/write=%.1f%n",
+                mode, clients, loginMillis, threadsAfter - threadsBefore, (heapAfter - heapBefore) / 1024, messages, broadcastMillis,
+                (double) (server.metrics().getMessagesOut() - framesBefore) / Math.max(1, server.metrics().getWritesOut() - writesBefore));
+        drainer.interrupt();
+        drain.close();
+        for (SocketChannel c : users) {
+            c.close();
+        }
+        server.stop();
+        Thread.sleep(1000); // letting the server's users go
+    }
+
+    /**
+     * Logs in a single idle user
+     *
+     * @param port - server's port
+     * @param name - user's name
+     * @return - the user's channel
+     * @throws IOException - connection failed
+     */
+    private SocketChannel login(int port, String name) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        Protocol.write(Channels.newOutputStream(channel), Frame.login(name));
+        Frame answer = Protocol.read(in);
+        if (answer == null || !answer.isApproved())
+            throw new IOException(name + " was not approved");
+        return channel;
+    }
+
+    /**
+     * Starts a thread reading and dropping everything the idle users receive
+     *
+     * @param drain - selector of the idle users
+     * @return - the thread
+     */
+    private Thread drainer(final Selector drain) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        drain.select(100);
+                        Iterator<SelectionKey> keys = drain.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            buffer.clear();
+                            if (((SocketChannel) key.channel()).read(buffer) < 0)
+                                key.cancel();
+                        }
+                    }
+                } catch (Exception ignored) { // closed at the end of the run
+                }
+            }
+        }, "drainer");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Broadcasts messages from a probe user and waits until it receives all of them back
+     *
+     * @param port - server's port
+     * @return - the time it took in milliseconds
+     * @throws Exception - connection failed
+     */
+    private long broadcast(int port) throws Exception {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            Protocol.write(out, Frame.login("probe"));
+            Protocol.read(in); // approved
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                Protocol.write(out, Frame.chat(null, "message " + i));
+            }
+            int received = 0;
+            while (received < messages) {
+                Frame frame = Protocol.read(in);
+                if (frame == null)
+                    throw new IOException("probe disconnected");
+                if (frame.getType() == Frame.Type.CHAT && frame.getName().equals("probe"))
+                    received++;
+            }
+            return (System.nanoTime() - start) / 1000000;
+        }
+    }
+
+    /**
+     * Returns the used heap after a garbage collection
+     *
+     * @return - used heap in bytes
+     */
+    private long usedHeap() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        List<Server.Mode> modes = new ArrayList<>();
+        long window = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("window="))
+                window = Long.parseLong(args[i].substring("window=".length()));
+            else
+                modes.add(Server.Mode.valueOf(args[i].toUpperCase()));
+        }
+        if (modes.isEmpty()) {
+            modes.add(Server.Mode.THREAD);
+            modes.add(Server.Mode.VIRTUAL);
+        }
+        ServerModeBenchmark bench = new ServerModeBenchmark(clients, messages);
+        bench.windowMicros = window;
+        for (int i = 0; i < modes.size(); i++) {
+            bench.run(modes.get(i), bench.FIRST_PORT + i);
+        }
+        System.exit(0);
+    }
+}
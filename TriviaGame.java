@@ -0,0 +1,445 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TriviaGame class
+ * One room's trivia game, its questions, scores and timing
+ * every game has its own state and its own mailbox, all its state is touched only by its mailbox's tasks,
+ * its waits are timers of the engine's shared scheduler, so a game holds no thread between its steps
+ * and one process can run thousands of games (see GameEngine)
+ * a game is a state machine, every state but IDLE has one timer that moves it on:
+ * IDLE -start-> STARTING -> READY (question announced) -> ASKING -> COUNTDOWN (its last seconds)
+ * -> JUDGING (answered in ASKING or COUNTDOWN) -> REVEAL (or time is up) -> READY with the next question,
+ * or IDLE when a player wins or the game is stopped
+ * timers are set to absolute deadlines (see RoundTiming), so late wakeups never add up
+ * the server stamps every chat line with its receive order and time, the right answer the server received first wins,
+ * not the first one to reach the bot, JUDGING waits the timing's grace for an earlier one still on its way
+ * the stamps are compared before the answer is checked, so late answers cost next to nothing
+ */
+public class TriviaGame {
+    /**
+     * The game's states
+     */
+    public enum State {
+        IDLE, // no game
+        STARTING, // game announced, the first question comes next
+        READY, // question announced, not asked yet
+        ASKING, // question asked, answers are checked
+        COUNTDOWN, // question's last seconds, counted down, answers are checked
+        JUDGING, // answered, answers received earlier than the best so far are checked
+        REVEAL // answer told, the next question comes next
+    }
+
+    private final String room; // the game's room
+    private final Client connection; // the bot's connection in the room
+    private final QuestionBank bank; // all the questions
+    private final GameEngine engine; // the hosting engine
+    private final ScheduledExecutorService scheduler; // shared timers
+    private final Mailbox mailbox; // runs the game's tasks one at a time
+    private final Map<String, Integer> scores = new HashMap<>(); // players score in the running game, see Scoreboard for all the games
+    private String category; // category of the games questions, null for all
+    private RoundTiming nextTiming = RoundTiming.DEFAULT; // timing of the next games
+    private RoundTiming timing = RoundTiming.DEFAULT; // timing of the running game
+    private QuestionDeck deck; // the running game's questions
+    private Question next; // the announced question, asked when READY is over
+    private Question question; // the question being answered, null unless ASKING or COUNTDOWN
+    private int questionNumber; // question counter
+    private volatile State state = State.IDLE; // current state, written in the mailbox only
+    private int epoch; // changes with every state, timers of older states are ignored
+    private ScheduledFuture<?> timer; // the current state's timer
+    private long deadline; // System.nanoTime() the question's time is up
+    private long ticksLeft; // countdown lines left
+    private long askedTime; // server's receive time of the question, 0 until its echo arrives
+    private String winner; // the best right answer's player while JUDGING
+    private long winnerTime; // its receive time
+    private long winnerSeq; // its receive order
+
+    /**
+     * Creates a room's game
+     *
+     * @param room       - the room
+     * @param connection - the bot's connection, already in the room
+     * @param bank       - the questions
+     * @param engine     - the hosting engine
+     */
+    public TriviaGame(String room, Client connection, QuestionBank bank, GameEngine engine) {
+        this.room = room;
+        this.connection = connection;
+        this.bank = bank;
+        this.engine = engine;
+        this.scheduler = engine.scheduler();
+        this.mailbox = new Mailbox(scheduler);
+    }
+
+    /**
+     * Returns the game's room
+     *
+     * @return - the room name
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the bot's connection in the room
+     *
+     * @return - the connection
+     */
+    public Client getConnection() {
+        return connection;
+    }
+
+    /**
+     * Starts a new trivia game
+     */
+    public void start() {
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                startGame();
+            }
+        });
+    }
+
+    /**
+     * Stops the running game
+     */
+    public void stop() {
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopGame("Game has been stopped.");
+            }
+        });
+    }
+
+    /**
+     * Sets the category of the next games questions
+     *
+     * @param name - category name, all for every category
+     */
+    public void category(final String name) {
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (name.equals("all")) {
+                    category = null;
+                    engine.console(room + " - Asking questions of all the categories");
+                } else if (bank.categories().contains(name)) {
+                    category = name;
+                    engine.console(room + " - Asking questions of " + name);
+                } else {
+                    engine.console(room + " - Error - No such category, categories are: " + bank.categories());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the timing of the next games
+     *
+     * @param t - the timing
+     */
+    public void timing(final RoundTiming t) {
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                nextTiming = t;
+                engine.console(room + " - Next games timing: " + t);
+            }
+        });
+    }
+
+    /**
+     * Checks a player's chat line, called by the connection's reader
+     *
+     * @param player - the player
+     * @param text   - the chat line
+     * @param seq    - server's receive order of the line
+     * @param time   - server's receive time of the line
+     */
+    public void answer(final String player, final String text, final long seq, final long time) {
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                checkAnswer(player, text, seq, time);
+            }
+        });
+    }
+
+    /**
+     * Notes the server's receive time of the bot's question, called by the connection's reader
+     * when the question comes back to the bot, before any answer the server received after it
+     *
+     * @param number - the question number
+     * @param time   - server's receive time of the question
+     */
+    public void asked(final int number, final long time) {
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (question != null && number == questionNumber)
+                    askedTime = time;
+            }
+        });
+    }
+
+    /**
+     * Returns the game's state
+     * the answer may be a little stale, it's read outside the game's mailbox
+     *
+     * @return - the state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns true while a game is running
+     *
+     * @return - true if in game
+     */
+    public boolean isInGame() {
+        return state != State.IDLE;
+    }
+
+    /**
+     * Starts a game, runs in the mailbox
+     */
+    private void startGame() {
+        if (state != State.IDLE) { // if game already running
+            engine.console(room + " - Error - Game already going.");
+            return;
+        }
+        deck = category == null ? new QuestionDeck(bank) : new QuestionDeck(bank, category, 0, 5);
+        if (deck.size() == 0) { // empty bank
+            engine.console(room + " - Error - No questions to ask.");
+            return;
+        }
+        timing = nextTiming;
+        scores.clear();
+        question = null;
+        questionNumber = 0;
+        out("Game has been started!");
+        out("You have " + seconds(timing.getAnswer()) + " seconds to answer every question.");
+        out("First player who gets " + timing.getPoints() + " points wins!");
+        out("GoodLuck!!");
+        out("Starting in " + seconds(timing.getStart()) + " Seconds.");
+        enter(State.STARTING, System.nanoTime() + millis(timing.getStart()));
+        engine.console(room + " - Game started");
+    }
+
+    /**
+     * Ends the running game, runs in the mailbox
+     *
+     * @param message - told to the room
+     */
+    private void stopGame(String message) {
+        if (state == State.IDLE)
+            return;
+        question = null;
+        enter(State.IDLE, 0);
+        out(message);
+        engine.console(room + " - Game over");
+    }
+
+    /**
+     * Moves the game on when its state's time is over, runs in the mailbox
+     */
+    private void onTimer() {
+        switch (state) {
+            case STARTING:
+            case REVEAL:
+                announce();
+                break;
+            case READY:
+                ask();
+                break;
+            case ASKING:
+                if (timing.getCountdown() == 0) { // no countdown, the time is up
+                    timesUp();
+                    break;
+                }
+                out("Hurry Up!!");
+                ticksLeft = (timing.getCountdown() + timing.getTick() - 1) / timing.getTick();
+                enter(State.COUNTDOWN, deadline - (ticksLeft - 1) * millis(timing.getTick()));
+                break;
+            case COUNTDOWN:
+                out(ticksLeft + "...");
+                if (--ticksLeft == 0) {
+                    timesUp();
+                    break;
+                }
+                schedule(deadline - (ticksLeft - 1) * millis(timing.getTick())); // last line at the deadline
+                break;
+            case JUDGING:
+                award();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Announces the next question, READY
+     */
+    private void announce() {
+        question = null; // nothing to answer until the next question is asked
+        next = deck.next(); // random question, not asked yet in this game
+        out("#################################################");
+        out("Get Ready for question number (" + ++questionNumber + ")...");
+        out("#################################################");
+        enter(State.READY, System.nanoTime() + millis(timing.getReady()));
+    }
+
+    /**
+     * Asks the announced question, ASKING until the countdown (or the deadline if there's none)
+     */
+    private void ask() {
+        question = next;
+        askedTime = 0;
+        connection.send(Frame.question(null, questionNumber, question.getText())); // sending question
+        deadline = System.nanoTime() + millis(timing.getAnswer());
+        enter(State.ASKING, deadline - millis(timing.getCountdown()));
+    }
+
+    /**
+     * Tells the answer nobody got, REVEAL
+     */
+    private void timesUp() {
+        out("Times Up. The right answer was: " + question.getAnswer());
+        reveal();
+    }
+
+    /**
+     * Closes the question, REVEAL
+     */
+    private void reveal() {
+        question = null;
+        enter(State.REVEAL, System.nanoTime() + millis(timing.getReveal()));
+    }
+
+    /**
+     * Checks a chat line against the current question, runs in the mailbox
+     * the first right answer starts JUDGING, then only answers received earlier than the best one are checked
+     *
+     * @param player - the player
+     * @param text   - the chat line
+     * @param seq    - server's receive order of the line
+     * @param time   - server's receive time of the line
+     */
+    private void checkAnswer(String player, String text, long seq, long time) {
+        if (state != State.ASKING && state != State.COUNTDOWN && state != State.JUDGING)
+            return;
+        if (askedTime != 0) {
+            if (time < askedTime) // meant for an earlier question
+                return;
+            engine.responseLatency().record(time - askedTime);
+        }
+        if (state == State.JUDGING && (time > winnerTime || time == winnerTime && seq >= winnerSeq))
+            return; // too late to win, not worth checking
+        if (!question.isAnswer(text))
+            return;
+        winner = player;
+        winnerTime = time;
+        winnerSeq = seq;
+        if (state == State.JUDGING) // an earlier answer overtaken on its way, the timer stays
+            return;
+        if (timing.getGrace() == 0) {
+            award();
+            return;
+        }
+        enter(State.JUDGING, System.nanoTime() + millis(timing.getGrace()));
+    }
+
+    /**
+     * Gives the point to the best right answer, REVEAL or IDLE if the player won
+     */
+    private void award() {
+        String player = winner;
+        winner = null;
+        String took = askedTime == 0 ? "" : " (" + seconds((winnerTime - askedTime) / 1000000) + " seconds)";
+        out(player + " - You are right!" + took + " The right answer was: " + question.getAnswer()); // right answer
+        int score = scores.getOrDefault(player, 0) + 1;
+        scores.put(player, score);
+        out(player + " has " + score + " points."); // a chat line, stamped with the bot's name by the server
+        Scoreboard board = engine.scoreboard();
+        board.add(player, 1);
+        if (score >= timing.getPoints()) { // player won
+            stopGame(player + " Has WON!!!");
+            out(player + " is #" + board.rank(board.season(), player) + " this season with " + board.points(board.season(), player)
+                    + " points, #" + board.rank(null, player) + " of all time");
+            return;
+        }
+        reveal();
+    }
+
+    /**
+     * Moves to a state and sets its timer, the previous state's timer is void
+     *
+     * @param next - the state
+     * @param at   - System.nanoTime() the state's time is over, ignored for IDLE
+     */
+    private void enter(State next, long at) {
+        state = next;
+        epoch++;
+        if (timer != null)
+            timer.cancel(false);
+        timer = null;
+        if (next != State.IDLE)
+            schedule(at);
+    }
+
+    /**
+     * Sets the current state's timer
+     *
+     * @param at - System.nanoTime() it goes off
+     */
+    private void schedule(long at) {
+        final int e = epoch;
+        timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mailbox.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (e == epoch) // not a state that was left meanwhile
+                            onTimer();
+                    }
+                });
+            }
+        }, at - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Converts milliseconds to nanoseconds
+     *
+     * @param ms - milliseconds
+     * @return - nanoseconds
+     */
+    private static long millis(long ms) {
+        return ms * 1000000;
+    }
+
+    /**
+     * Formats milliseconds as seconds
+     *
+     * @param ms - milliseconds
+     * @return - whole seconds, or seconds with a fraction
+     */
+    private static String seconds(long ms) {
+        return ms % 1000 == 0 ? String.valueOf(ms / 1000) : String.valueOf(ms / 1000.0);
+    }
+
+    /**
+     * Sends a chat line to the room
+     *
+     * @param msg - the line
+     */
+    private void out(String msg) {
+        connection.sendMsg(msg);
+    }
+}
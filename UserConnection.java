@@ -0,0 +1,70 @@
+/**
+ * UserConnection interface
+ * A server side connection of a single chat user
+ * implemented by the blocking (thread per user) and the NIO connection managers
+ */
+public interface UserConnection {
+    /**
+     * Sends a frame to the client
+     *
+     * @param frame - the frame
+     */
+    void send(Frame frame);
+
+    /**
+     * Sends an already encoded frame to the client
+     * used by broadcasts, the frame is encoded once for all the users
+     *
+     * @param message - the encoded frame
+     */
+    void send(EncodedMessage message);
+
+    /**
+     * Returns the user's name
+     *
+     * @return - the user's name, null if the user didn't log in yet
+     */
+    String getUserName();
+
+    /**
+     * Returns the room the user is in
+     *
+     * @return - the room, null if the user isn't in a room
+     */
+    Room getRoom();
+
+    /**
+     * Sets the room the user is in, called by the rooms only
+     *
+     * @param room - the room, null when leaving
+     */
+    void setRoom(Room room);
+
+    /**
+     * Returns what the user was sent so far
+     *
+     * @return - the user's send stats
+     */
+    SendStats getSendStats();
+
+    /**
+     * Returns the number of frames waiting to be written to the client
+     *
+     * @return - outbound queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of frames dropped because the client was too slow
+     *
+     * @return - dropped frames count
+     */
+    long getDroppedMessages();
+
+    /**
+     * Returns the limit on the frames the user may send
+     *
+     * @return - the user's token bucket, null for no limit
+     */
+    RateLimiter getMessageLimiter();
+}
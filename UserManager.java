@@ -1,33 +1,65 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * UserManager class
  * Connection handler for a server's user
  * maintaining open stream for sending and receiving information
+ * runs on its own thread, a platform or a virtual one depending on the server's mode
+ * data sent to the user is queued and written by a second (writer) thread,
+ * so a slow client never blocks the thread that sends to it
+ * the frames are already encoded (EncodedMessage), the writer only copies bytes,
+ * everything queued is copied into one buffer and written at once (see Server.setWriteCoalescing),
+ * so a burst of lines costs one write instead of one per line
+ * frames are read into one reused buffer, a relayed chat line allocates only its outgoing frame
  */
-public class UserManager extends Thread {
+public class UserManager implements Runnable, UserConnection {
+    private static final int READ_BUFFER = 4096; // frames up to this size are read without allocating
     private Socket socket; // server socket
     private Server server; // server
-    private String userName; // client's username
-    private ObjectOutputStream out; /// out stream
-    private BufferedReader in; // in stream
+    private volatile String userName; // client's username
+    private byte[] encodedName; // username's UTF-8 bytes, stamped on the relayed chat lines
+    private volatile Room room; // the user's room, null until joined
+    private OutputStream out; /// out stream
+    private DataInputStream in; // in stream
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER); // the client's frames are read into it
+    private final OutboundQueue<EncodedMessage> outQueue; // data waiting to be written
+    private final SendStats stats; // what the writer wrote
+    private final Thread writer; // writes the queued data
+    private final List<EncodedMessage> written = new ArrayList<>(); // the messages of the writer's buffer
+    private boolean closed; // disconnected and closed, used by the reader only
+    private final RateLimiter messageLimiter; // limits the frames the user sends, null for no limit
 
     /**
      * Creates a new user connection manager
      *
-     * @param s  - socket connection
-     * @param sr - the server
+     * @param s       - socket connection
+     * @param sr      - the server
+     * @param threads - creates the writer thread
      */
-    public UserManager(Socket s, Server sr) { // creating user thread
+    public UserManager(Socket s, Server sr, ThreadFactory threads) { // creating user thread
+        outQueue = sr.newOutboundQueue();
+        stats = new SendStats(sr.metrics());
+        messageLimiter = sr.newMessageLimiter();
+        writer = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
         try { // creating connection
             socket = s;
             server = sr;
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (IOException e) {
             System.out.println("Could not open stream");
         }
@@ -39,46 +71,198 @@ public class UserManager extends Thread {
      */
     @Override
     public void run() {
+        server.metrics().userThreadStarted();
+        writer.start();
         try {
             boolean addedSucceeded;
             do { //getting input from client (first input must be the username)
-                userName = in.readLine();
-                addedSucceeded = server.addUser(this, userName); // trying to add username, if username not already exists
+                Frame login = Protocol.read(in, Protocol.MAX_LOGIN_FRAME_LENGTH); // a LOGIN is tiny, nothing large is read before it
+                if (login == null) // client left before logging in
+                    throw new IOException("no username");
+                addedSucceeded = login.getType() == Frame.Type.LOGIN && server.addUser(this, login.getName()).join(); // trying to add username, if username not already exists
                 if (addedSucceeded)
-                    out.writeObject("APPROVED");
+                    userName = login.getName();
                 else
-                    out.writeObject("NOT APPROVED");
+                    server.metrics().loginRetry();
+                send(Frame.loginAck(addedSucceeded));
             }
             while (!addedSucceeded);
-            server.announceNewConnection(this, userName); // notifying all clients about the connection
-            send("You Joined the room");
-            server.sendUsersList(); // send updated users list
-            String input;
-            while (socket.isConnected() && (input = in.readLine()) != null) { // reading msg from client
-                server.sendAll((userName + ": " + input));
+            encodedName = Protocol.utf8(userName);
+            server.announceNewConnection(this, userName); // users list to the user, notifying all clients about the connection
+            ByteBuffer body;
+            while ((body = Protocol.readBody(in, readBuffer)) != null) { // reading frames from client
+                server.relay(this, encodedName, body);
             }
-            disconnect(); // disconnect
-            server.sendUsersList();
-            // closing
-            in.close();
-            out.close();
-            socket.close();
-        } catch (IOException e) { // if error occurred
-            disconnect(); // remove and notify all
-            server.sendUsersList();
+        } catch (IOException ignored) { // if error occurred, the client is gone
+        } catch (RuntimeException e) { // unexpected, the user is dropped all the same
+            server.console("Closing " + userName + " - " + e);
+            e.printStackTrace();
+        } finally {
+            shutdown(); // remove and notify all, closing
+            server.metrics().userThreadStopped();
+        }
+    }
+
+    /**
+     * Disconnects and closes the connection, once
+     */
+    private void shutdown() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            disconnect();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Writer,
+     * writes the queued data until the connection is closed
+     */
+    private void write() {
+        server.metrics().userThreadStarted();
+        long window = server.getCoalesceNanos();
+        byte[] buffer = new byte[server.getCoalesceBytes()];
+        try {
+            while (true) {
+                EncodedMessage message = outQueue.take();
+                long until = System.nanoTime() + window;
+                int n = 0;
+                while (message != null) {
+                    int length = message.length();
+                    if (n + length > buffer.length) { // doesn't fit, what's buffered goes first
+                        n = write(buffer, n);
+                        if (length > buffer.length) {
+                            out.write(message.bytes());
+                            stats.wrote();
+                            stats.sent(message);
+                            message = null;
+                        }
+                    }
+                    if (message != null) {
+                        message.copyTo(buffer, n);
+                        n += length;
+                        written.add(message);
+                    }
+                    if (n == buffer.length)
+                        break;
+                    message = outQueue.poll();
+                    long left = until - System.nanoTime();
+                    if (message == null && window > 0 && left > 0) // waiting a little for more
+                        message = outQueue.poll(left);
+                }
+                write(buffer, n);
+            }
+        } catch (InterruptedException ignored) { // closed
+        } catch (IOException e) { // client is gone, the reader will notice
+            closeSocket();
+        } finally {
+            server.metrics().userThreadStopped();
         }
     }
 
     /**
-     * Sends data to the client
+     * Writes the writer's buffer
      *
-     * @param data - the data
+     * @param buffer - the buffer
+     * @param n      - bytes in the buffer
+     * @return - 0, the buffer is empty
+     * @throws IOException - write failed
+     */
+    private int write(byte[] buffer, int n) throws IOException {
+        if (n == 0)
+            return 0;
+        out.write(buffer, 0, n);
+        stats.wrote();
+        for (EncodedMessage m : written) {
+            stats.sent(m);
+        }
+        written.clear();
+        return 0;
+    }
+
+    /**
+     * Sends a frame to the client
+     *
+     * @param frame - the frame
+     */
+    @Override
+    public void send(Frame frame) {
+        send(EncodedMessage.of(frame));
+    }
+
+    /**
+     * Sends an encoded frame to the client
+     * the message is queued and written by the writer thread
+     *
+     * @param message - the message
+     */
+    @Override
+    public void send(EncodedMessage message) {
+        if (!outQueue.offer(message)) { // client is too slow
+            server.console(userName + " is too slow, disconnecting.");
+            closeSocket(); // the reader fails and disconnects
+        }
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public SendStats getSendStats() {
+        return stats;
+    }
+
+    @Override
+    public Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outQueue.depth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outQueue.dropped();
+    }
+
+    @Override
+    public RateLimiter getMessageLimiter() {
+        return messageLimiter;
+    }
+
+    /**
+     * Stops the writer, closes the streams and frees the connection's slot
      */
-    public void send(Object data) {
+    private void close() {
+        writer.interrupt();
+        outQueue.clear();
         try {
-            out.writeObject(data);
-        } catch (IOException e) {
-            e.printStackTrace();
+            in.close();
+        } catch (IOException ignored) {
+        }
+        closeSocket();
+        server.release(socket.getInetAddress());
+    }
+
+    /**
+     * Closes the socket
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
         }
     }
 
@@ -87,6 +271,5 @@ public class UserManager extends Thread {
      */
     private void disconnect() { // notifying all client when disconnecting
         server.removeUser(this, userName);
-        server.sendAll(userName + " Has Left The Room.");
     }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UserRegistry class
+ * The server's usernames, safe to use from many connection threads without locking
+ * usernames are claimed atomically and are unique across all the rooms,
+ * the rooms themselves keep their members (see Room)
+ */
+public class UserRegistry {
+    private final ConcurrentSkipListMap<String, UserConnection> users = new ConcurrentSkipListMap<>(); // claimed name -> connection
+    private final AtomicInteger count = new AtomicInteger(); // number of users, the map's size() is not constant time
+
+    /**
+     * Claims a username for a connection
+     *
+     * @param name - the username
+     * @param user - the connection
+     * @return - true if the name was free and is now taken by the connection, false otherwise
+     */
+    public boolean claim(String name, UserConnection user) {
+        if (users.putIfAbsent(name, user) != null)
+            return false;
+        count.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Releases a username
+     * the name is released only if it is held by the given connection,
+     * so a failed login can't remove another user with the same name
+     *
+     * @param name - the username
+     * @param user - the connection holding it
+     * @return - true if the name was released, false otherwise
+     */
+    public boolean release(String name, UserConnection user) {
+        if (!users.remove(name, user))
+            return false;
+        count.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns a live view of the connections that claimed a name
+     * iteration never throws while users come and go, and copies nothing
+     *
+     * @return - the connections
+     */
+    public Collection<UserConnection> connections() {
+        return users.values();
+    }
+
+    /**
+     * Returns the number of users, including the ones still logging in
+     *
+     * @return - the number of users
+     */
+    public int size() {
+        return count.get();
+    }
+}
@@ -0,0 +1,283 @@
+package chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HotPathBenchmark class
+ * Measures the chat's hot paths one operation at a time, the baseline for judging performance changes
+ * results are nanoseconds per operation, every benchmark returns its result so the JIT can't drop the work
+ * benchmarks:
+ * broadcast - a room broadcast to members users, encoding included
+ * login - connect, LOGIN and LOGIN_ACK against an in-process server of every mode
+ * decodeStream - reading one frame from a blocking stream (Protocol.read)
+ * decodeNio - decoding one frame from a read buffer, as the NIO server and the Client do
+ * relayChat - restamping a client's chat line with the sender's name, as the server relays it
+ * answer - decoding a player's CHAT as the bot's client does and checking it against the question's answers,
+ * the check TriviaGame.checkAnswer makes once the line's stamp is in time
+ * usage: gradle jmh -Pjmh="[regexp] [JMH options]"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class HotPathBenchmark {
+    private static final int LOGIN_PORT = 7780; // first port of the login benchmarks
+
+    /**
+     * A room member that only counts what it gets,
+     * so a broadcast's time is the fan-out itself and not the members queues
+     */
+    private static class CountingUser implements UserConnection {
+        private final String name; // username
+        private Room room; // current room
+        private long received; // messages received
+
+        CountingUser(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            send(EncodedMessage.of(frame));
+        }
+
+        @Override
+        public void send(EncodedMessage message) {
+            received++;
+        }
+
+        @Override
+        public String getUserName() {
+            return name;
+        }
+
+        @Override
+        public SendStats getSendStats() {
+            return null; // nothing is written
+        }
+
+        @Override
+        public Room getRoom() {
+            return room;
+        }
+
+        @Override
+        public void setRoom(Room room) {
+            this.room = room;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public RateLimiter getMessageLimiter() {
+            return null;
+        }
+    }
+
+    /**
+     * A room of counting members
+     */
+    @State(Scope.Benchmark)
+    public static class Broadcast {
+        @Param({"10", "1000", "10000"})
+        public int members; // number of members in the room
+        private Room room; // the room
+        private final Frame line = Frame.chat("player", "The answer is probably forty two");
+
+        @Setup
+        public void setUp() {
+            room = new Room("bench");
+            for (int i = 0; i < members; i++) {
+                CountingUser u = new CountingUser("user" + i);
+                room.join(u.getUserName(), u);
+            }
+        }
+    }
+
+    /**
+     * An in-process server
+     */
+    @State(Scope.Benchmark)
+    public static class Login {
+        @Param({"THREAD", "NIO"})
+        public Server.Mode mode; // the server's mode
+        private Server server; // the server
+        private int port; // the server's port
+        private int next; // makes every username unique
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            port = LOGIN_PORT + mode.ordinal();
+            server = new Server(port, mode, Integer.MAX_VALUE, 1);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.run();
+                }
+            }, "server-" + mode);
+            t.setDaemon(true);
+            t.start();
+            if (!server.awaitBound(5000))
+                throw new IllegalStateException("the " + mode + " server didn't start");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.stop();
+        }
+    }
+
+    /**
+     * A typical mix of server frames on a blocking stream
+     */
+    @State(Scope.Thread)
+    public static class StreamFrames {
+        private final ByteArrayInputStream bytes = new ByteArrayInputStream(serverFrames());
+        private final DataInputStream in = new DataInputStream(bytes);
+    }
+
+    /**
+     * A typical mix of server frames in a direct read buffer, like the event loops
+     */
+    @State(Scope.Thread)
+    public static class BufferFrames {
+        private final FrameDecoder decoder = new FrameDecoder();
+        private ByteBuffer frames; // the frames, in read mode
+
+        @Setup
+        public void setUp() {
+            byte[] bytes = serverFrames();
+            frames = ByteBuffer.allocateDirect(bytes.length);
+            frames.put(bytes).flip();
+        }
+    }
+
+    /**
+     * A client's chat line as the server reads it
+     */
+    @State(Scope.Thread)
+    public static class Relay {
+        private final byte[] line = Protocol.encode(Frame.chat(null, "The answer is probably forty two"));
+        private final ByteBuffer body = ByteBuffer.wrap(line, Protocol.LENGTH_FIELD, line.length - Protocol.LENGTH_FIELD);
+        private final byte[] sender = Protocol.utf8("player");
+        private long seq; // receive order
+    }
+
+    /**
+     * A question and the players guesses
+     */
+    @State(Scope.Thread)
+    public static class Answers {
+        private final Question question = new Question("Capital of Israel?", HeapQuestionBank.GENERAL, 1, new String[]{"Jerusalem"});
+        private final byte[][] guesses = {
+                Protocol.encode(Frame.chat("player1", "Tel Aviv")),
+                Protocol.encode(Frame.chat("player2", "jerusalem")),
+                Protocol.encode(Frame.chat("player3", "Jeruslaem")),
+                Protocol.encode(Frame.chat("player4", "I think it's Haifa"))
+        };
+        private int next; // the next guess
+    }
+
+    /**
+     * Encodes a typical mix of server frames, one after another
+     *
+     * @return - the encoded frames
+     */
+    private static byte[] serverFrames() {
+        String[] names = new String[50];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "user" + i;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < 64; i++) {
+            Frame f;
+            if (i % 32 == 0)
+                f = Frame.userList(names, i);
+            else if (i % 8 == 0)
+                f = Frame.join("user" + i, i);
+            else
+                f = Frame.chat("user" + i % 50, "chat line number " + i + " with some words in it");
+            byte[] b = Protocol.encode(f);
+            bytes.write(b, 0, b.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public void broadcast(Broadcast state) {
+        state.room.sendAll(state.line);
+    }
+
+    @Benchmark
+    public Frame login(Login state) throws Exception {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", state.port))) {
+            Protocol.write(Channels.newOutputStream(channel), Frame.login("bench" + state.next++));
+            Frame answer = Protocol.read(new DataInputStream(Channels.newInputStream(channel)));
+            if (answer == null || !answer.isApproved())
+                throw new IllegalStateException("login was not approved");
+            return answer;
+        }
+    }
+
+    @Benchmark
+    public Frame decodeStream(StreamFrames state) throws Exception {
+        Frame f = Protocol.read(state.in);
+        if (f == null) { // read them all, starting over
+            state.bytes.reset();
+            f = Protocol.read(state.in);
+        }
+        return f;
+    }
+
+    @Benchmark
+    public Frame decodeNio(BufferFrames state) throws Exception {
+        Frame f = state.decoder.next(state.frames);
+        if (f == null) { // decoded them all, starting over
+            state.frames.clear();
+            f = state.decoder.next(state.frames);
+        }
+        return f;
+    }
+
+    @Benchmark
+    public EncodedMessage relayChat(Relay state) {
+        return EncodedMessage.wrap(Protocol.stampChat(state.body, state.sender, ++state.seq, Server.clock()));
+    }
+
+    @Benchmark
+    public boolean answer(Answers state) throws Exception {
+        byte[] guess = state.guesses[state.next++ & 3];
+        Frame f = Protocol.decode(ByteBuffer.wrap(guess, Protocol.LENGTH_FIELD, guess.length - Protocol.LENGTH_FIELD));
+        return state.question.isAnswer(f.getText());
+    }
+}
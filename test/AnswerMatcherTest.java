@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * AnswerMatcherTest class
+ * Checks the guesses AnswerMatcher forgives and the ones it doesn't
+ */
+public class AnswerMatcherTest {
+
+    /**
+     * Creates a matcher of some answers
+     *
+     * @param answers - the accepted answers
+     * @return - the matcher
+     */
+    private static AnswerMatcher of(String... answers) {
+        return new AnswerMatcher(answers);
+    }
+
+    @Test
+    public void ignoresCaseSpacesAndPunctuation() {
+        AnswerMatcher m = of("Jerusalem");
+        assertTrue(m.matches("jerusalem"));
+        assertTrue(m.matches("  JERUSALEM!! "));
+        assertTrue(of("Rock and Roll").matches("rock-and   roll"));
+        assertTrue(of("Don't Stop").matches("dont stop"));
+        assertFalse(m.matches(null));
+    }
+
+    @Test
+    public void dropsLeadingArticle() {
+        assertTrue(of("The Beatles").matches("beatles"));
+        assertTrue(of("Beatles").matches("the beatles"));
+        assertTrue(of("an apple").matches("a apple"));
+        assertTrue(of("A").matches("a")); // a single word is kept even if it is an article
+        assertFalse(of("A").matches("the"));
+    }
+
+    @Test
+    public void foldsAccentsAndCompatibilityForms() {
+        assertTrue(of("Zürich").matches("zurich"));
+        assertTrue(of("Zurich").matches("ZÜRICH"));
+        assertTrue(of("Pelé").matches("Pele\u0301")); // a decomposed accent
+        assertTrue(of("cafe").matches("ＣＡＦＥ")); // full width letters
+        assertTrue(of("fish").matches("ﬁsh")); // the fi ligature
+        assertTrue(of("Beyonce").matches("the beyoncé"));
+    }
+
+    @Test
+    public void forgivesTyposByLength() {
+        assertFalse(of("Red").matches("Rad")); // up to 3 letters are exact
+        assertTrue(of("Rome").matches("Roma")); // from 4 letters, 1 edit
+        assertFalse(of("Rome").matches("Rama"));
+        assertTrue(of("Jerusalem").matches("Jerusalam")); // from 9 letters, 2 edits
+        assertTrue(of("Jerusalem").matches("Jrusalm"));
+        assertFalse(of("Jerusalem").matches("Jrslem"));
+        assertFalse(of("Jerusalem").matches("Jexuxaxem"));
+    }
+
+    @Test
+    public void swapIsOneEdit() {
+        assertTrue(of("Rome").matches("Rmoe"));
+        assertTrue(of("Jerusalem").matches("Jeruslaem"));
+        assertTrue(of("Jerusalem").matches("eJruslaem"));
+        assertFalse(of("Paris").matches("aPirs")); // two swaps on a 1 edit answer
+    }
+
+    @Test
+    public void bandIsWiderThanTheGuess() {
+        AnswerMatcher m = of("abcd");
+        assertTrue(m.matches("abc"));
+        assertTrue(m.matches("bcd"));
+        assertTrue(m.matches("abxd"));
+        assertTrue(m.matches("xabcd"));
+        assertTrue(m.matches("abcde"));
+        assertFalse(m.matches("ab"));
+        assertFalse(m.matches("dcba"));
+        AnswerMatcher w = of("Washington");
+        assertTrue(w.matches("Washingt"));
+        assertTrue(w.matches("xxWashington"));
+        assertFalse(w.matches("Washin"));
+        assertFalse(w.matches("xxxWashington"));
+    }
+
+    @Test
+    public void readsNumberWords() {
+        AnswerMatcher m = of("4");
+        assertTrue(m.matches("four"));
+        assertTrue(m.matches(" 4 "));
+        assertTrue(m.matches("4.0"));
+        assertFalse(m.matches("five"));
+        assertFalse(m.matches("fourty"));
+        assertTrue(of("1,000").matches("one thousand"));
+        assertTrue(of("one thousand").matches("1000"));
+        assertTrue(of("120").matches("one hundred and twenty"));
+        assertTrue(of("2001").matches("two thousand and one"));
+        assertTrue(of("1945").matches("one thousand nine hundred forty five"));
+        assertTrue(of("3,500,000").matches("three million five hundred thousand"));
+        assertTrue(of("3.14").matches("3.140"));
+        assertFalse(of("3.14").matches("3.15"));
+    }
+
+    @Test
+    public void digitAnswersAreNeverFuzzy() {
+        AnswerMatcher m = of("1945");
+        assertTrue(m.matches("1945"));
+        assertFalse(m.matches("1946"));
+        assertFalse(m.matches("1954"));
+        assertFalse(m.matches("194"));
+        assertFalse(m.matches("19450"));
+        assertTrue(of("1945", "Berlin").matches("Berln")); // the words around it still are
+    }
+
+    @Test
+    public void emptyAnswersMatchNothing() {
+        for (AnswerMatcher m : new AnswerMatcher[]{of(), of(""), of("?!"), of("  ")}) {
+            assertFalse(m.matches(""));
+            assertFalse(m.matches(" "));
+            assertFalse(m.matches("?"));
+            assertFalse(m.matches("a"));
+        }
+    }
+
+    @Test
+    public void longGuessesAreWrong() {
+        StringBuilder guess = new StringBuilder();
+        while (guess.length() <= 128) {
+            guess.append("four ");
+        }
+        assertFalse(of("4").matches(guess.toString())); // numbers may be spelled out, but not that long
+        assertTrue(of("4").matches("four" + " ".repeat(200))); // trailing spaces don't count
+    }
+}
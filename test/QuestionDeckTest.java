@@ -0,0 +1,151 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * QuestionDeckTest class
+ * Checks that QuestionDeck deals every question once per round and keeps to its filter
+ */
+public class QuestionDeckTest {
+    private static final String[] CATEGORIES = {"History", "Science", "Sports"}; // question i is of CATEGORIES[i % 3]
+
+    /**
+     * A bank that makes its questions up from their index, so it can be as large as needed
+     * question i is "q<i>", of category i % 3 and difficulty i % 5 + 1
+     */
+    private static class GeneratedBank implements QuestionBank {
+        private final int size; // number of questions
+        private final Set<Integer> decoded = new HashSet<>(); // indexes asked for
+
+        GeneratedBank(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Question get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("question " + index);
+            decoded.add(index);
+            return new Question("q" + index, category(index), difficulty(index), new String[]{"a" + index});
+        }
+
+        @Override
+        public String category(int index) {
+            return CATEGORIES[index % CATEGORIES.length];
+        }
+
+        @Override
+        public int difficulty(int index) {
+            return index % 5 + 1;
+        }
+
+        @Override
+        public List<String> categories() {
+            return Arrays.asList(CATEGORIES);
+        }
+    }
+
+    /**
+     * Draws a round and returns the questions indexes
+     *
+     * @param deck - the deck
+     * @param n    - questions to draw
+     * @return - the indexes, in draw order
+     */
+    private static int[] draw(QuestionDeck deck, int n) {
+        int[] drawn = new int[n];
+        for (int i = 0; i < n; i++) {
+            drawn[i] = Integer.parseInt(deck.next().getText().substring(1));
+        }
+        return drawn;
+    }
+
+    @Test
+    public void dealsEveryQuestionOncePerRound() {
+        QuestionDeck deck = new QuestionDeck(new GeneratedBank(100));
+        assertEquals(100, deck.size());
+        for (int round = 0; round < 5; round++) {
+            Set<Integer> seen = new HashSet<>();
+            for (int q : draw(deck, 100)) {
+                assertTrue(seen.add(q), "question " + q + " repeated in round " + round);
+            }
+            assertEquals(100, seen.size());
+        }
+    }
+
+    @Test
+    public void shuffles() {
+        QuestionDeck deck = new QuestionDeck(new GeneratedBank(1000));
+        int[] order = draw(deck, 1000);
+        int inPlace = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] == i)
+                inPlace++;
+        }
+        assertTrue(inPlace < 20, inPlace + " questions in their bank order"); // about 1 is expected
+    }
+
+    @Test
+    public void keepsToItsFilter() {
+        GeneratedBank bank = new GeneratedBank(300);
+        QuestionDeck deck = new QuestionDeck(bank, "Science", 2, 3);
+        int expected = 0;
+        for (int i = 0; i < bank.size(); i++) {
+            if (bank.category(i).equals("Science") && bank.difficulty(i) >= 2 && bank.difficulty(i) <= 3)
+                expected++;
+        }
+        assertEquals(expected, deck.size());
+        for (int round = 0; round < 3; round++) {
+            Set<Integer> seen = new HashSet<>();
+            for (int q : draw(deck, deck.size())) {
+                assertEquals("Science", bank.category(q));
+                assertTrue(bank.difficulty(q) >= 2 && bank.difficulty(q) <= 3, "difficulty " + bank.difficulty(q));
+                assertTrue(seen.add(q), "question " + q + " repeated");
+            }
+        }
+    }
+
+    @Test
+    public void anyCategoryWithNullFilter() {
+        QuestionDeck deck = new QuestionDeck(new GeneratedBank(100), null, 5, 5);
+        assertEquals(20, deck.size());
+    }
+
+    @Test
+    public void emptyDeckHasNoQuestion() {
+        assertNull(new QuestionDeck(new GeneratedBank(0)).next());
+        QuestionDeck none = new QuestionDeck(new GeneratedBank(100), "Art", 1, 5);
+        assertEquals(0, none.size());
+        assertNull(none.next());
+    }
+
+    @Test
+    public void singleQuestionRepeats() {
+        QuestionDeck deck = new QuestionDeck(new GeneratedBank(1));
+        assertEquals("q0", deck.next().getText());
+        assertEquals("q0", deck.next().getText());
+    }
+
+    @Test
+    public void decodesOnlyWhatItDeals() {
+        GeneratedBank bank = new GeneratedBank(10000000);
+        QuestionDeck deck = new QuestionDeck(bank);
+        Set<Integer> seen = new HashSet<>();
+        for (int q : draw(deck, 1000)) {
+            assertTrue(seen.add(q), "question " + q + " repeated");
+        }
+        assertEquals(seen, bank.decoded);
+    }
+}
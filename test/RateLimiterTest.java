@@ -0,0 +1,138 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+/**
+ * RateLimiterTest class
+ * Checks RateLimiter's bursts, refills and its single compare and set under contention
+ * refills run on a test clock, the other tests rates are slow enough that the time a test takes doesn't bring a token back
+ */
+public class RateLimiterTest {
+
+    /**
+     * A clock that only moves when told to
+     */
+    private static class Clock implements LongSupplier {
+        private long now = 1000000000L; // nanoseconds
+
+        @Override
+        public long getAsLong() {
+            return now;
+        }
+
+        /**
+         * Moves the clock on
+         *
+         * @param millis - milliseconds
+         */
+        void advance(long millis) {
+            now += millis * 1000000;
+        }
+    }
+
+    @Test
+    public void allowsOneBurst() {
+        RateLimiter limiter = new RateLimiter(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(), "token " + i);
+        }
+        assertFalse(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void refillsAtItsRate() {
+        Clock clock = new Clock();
+        RateLimiter limiter = new RateLimiter(20, 2, clock); // a token every 50 ms
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        clock.advance(49);
+        assertFalse(limiter.tryAcquire());
+        clock.advance(1);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        clock.advance(100);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void idleTimeDoesntSaveMoreThanABurst() {
+        Clock clock = new Clock();
+        RateLimiter limiter = new RateLimiter(100, 3, clock); // a token every 10 ms
+        clock.advance(10000); // a thousand tokens worth
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(), "token " + i);
+        }
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void clampsTheIntervalToANanosecond() {
+        RateLimiter limiter = new RateLimiter(1e12, 1); // shorter than a nanosecond
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void rejectsBadRates() {
+        assertThrows(IllegalArgumentException.class, create(0, 1));
+        assertThrows(IllegalArgumentException.class, create(-1, 1));
+        assertThrows(IllegalArgumentException.class, create(1, 0));
+    }
+
+    /**
+     * Creates a limiter when executed
+     *
+     * @param perSecond - tokens per second
+     * @param burst     - the bucket's size
+     * @return - the creation
+     */
+    private static Executable create(final double perSecond, final int burst) {
+        return new Executable() {
+            @Override
+            public void execute() {
+                new RateLimiter(perSecond, burst);
+            }
+        };
+    }
+
+    @Test
+    public void concurrentTakersShareOneBurst() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(0.01, 1000); // a token every 100 seconds
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 1000; j++) {
+                        if (limiter.tryAcquire())
+                            taken.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1000, taken.get());
+    }
+}